@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Recorded payloads from the service tests, scaled to a page size
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+final class Payloads {
+
+    static final String SRU_NS = "http://docs.oasis-open.org/ns/search-ws/sruResponse";
+    static final String MARC_NS = "http://www.loc.gov/MARC21/slim";
+
+    private static final String SRU_RESPONSE = "/__files/base_bibsys_horse_response.xml";
+
+    private Payloads() {
+    }
+
+    /**
+     * The recorded bibsys sru response, with its record repeated
+     * <p>
+     * Every copy gets its own controlfield 001, so they look like different
+     * records.
+     *
+     * @param records number of records in the page
+     * @return serialized sru response
+     */
+    static byte[] sruResponse(int records) {
+        Document doc = load(SRU_RESPONSE);
+        Element list = (Element) doc.getElementsByTagNameNS(SRU_NS, "records").item(0);
+        Element record = (Element) doc.getElementsByTagNameNS(SRU_NS, "record").item(0);
+        while (list.getFirstChild() != null) {
+            list.removeChild(list.getFirstChild());
+        }
+        for (int i = 0 ; i < records ; i++) {
+            Element copy = (Element) record.cloneNode(true);
+            Node id = controlNumber(copy);
+            if (id != null) {
+                id.setTextContent(id.getTextContent() + "-" + i);
+            }
+            list.appendChild(copy);
+        }
+        return serialize(doc);
+    }
+
+    /**
+     * The marc record of the recorded bibsys sru response
+     *
+     * @return record element, owned by the caller
+     */
+    static Element marcRecord() {
+        Document doc = load(SRU_RESPONSE);
+        return (Element) doc.getElementsByTagNameNS(MARC_NS, "record").item(0);
+    }
+
+    /**
+     * The marc record of the recorded bibsys sru response, as formatted
+     * output
+     *
+     * @return serialized record
+     */
+    static byte[] formattedRecord() {
+        return serialize(marcRecord());
+    }
+
+    private static Node controlNumber(Element record) {
+        NodeList fields = record.getElementsByTagNameNS(MARC_NS, "controlfield");
+        for (int i = 0 ; i < fields.getLength() ; i++) {
+            Element field = (Element) fields.item(i);
+            if ("001".equals(field.getAttribute("tag"))) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    private static Document load(String resource) {
+        try (InputStream is = Payloads.class.getResourceAsStream(resource)) {
+            if (is == null) {
+                throw new IllegalStateException("Missing payload: " + resource);
+            }
+            return XmlTools.newDocumentBuilder().parse(is);
+        } catch (SAXException | IOException ex) {
+            throw new IllegalStateException("Cannot read payload: " + resource, ex);
+        }
+    }
+
+    private static byte[] serialize(Node node) {
+        try {
+            Transformer transformer = XmlTools.newTransformer();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            transformer.transform(new DOMSource(node), new StreamResult(bos));
+            return bos.toByteArray();
+        } catch (TransformerException ex) {
+            throw new IllegalStateException("Cannot serialize payload", ex);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.MetricRegistry;
+import dk.dbc.ess.service.response.EssResponse;
+import dk.dbc.sru.sruresponse.SearchRetrieveResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building a page from an sru response, and serializing the ESS response
+ * <p>
+ * OpenFormat is replaced by a formatting that answers with the marc record,
+ * so only the work done by ESS itself is measured.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark {
+
+    @Param({"1", "10", "50"})
+    public int pageSize;
+
+    private ExecutorService executor;
+    private EssService essService;
+    private SearchRetrieveResponse sru;
+    private Page page;
+    private Marshalling marshalling;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Settings settings = new Settings();
+        settings.setMetaProxyUrl("http://localhost/metaproxy");
+        settings.setOpenFormatUrl("http://localhost/openformat");
+        settings.setBases("bibsys");
+        settings.setMaxPageSize(pageSize);
+        executor = Executors.newFixedThreadPool(4);
+        essService = new EssService(settings, new MetricRegistry(), null, null, executor, executor);
+        essService.formatting = new CopyFormatting(settings);
+        sru = Marshalling.INSTANCE.unmarshal(new ByteArrayInputStream(Payloads.sruResponse(pageSize)), SearchRetrieveResponse.class);
+        page = buildPage();
+        marshalling = new Marshalling(EssResponse.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Sru response to a page with all records formatted
+     *
+     * @return page
+     */
+    @Benchmark
+    public Page buildPage() {
+        Page built = essService.buildPage(sru, "marcxchange", "bibsys:", "benchmark", Deadline.NONE, executor);
+        built.done().join();
+        return built;
+    }
+
+    /**
+     * Serialize a formatted page with the streaming writer
+     *
+     * @throws IOException if writing fails
+     */
+    @Benchmark
+    public void writeResponse() throws IOException {
+        new EssResponseWriter(page, "benchmark").write(NullOutputStream.INSTANCE);
+    }
+
+    /**
+     * Serialize a formatted page with JAXB, as the non streaming response is
+     *
+     * @throws IOException if writing fails
+     */
+    @Benchmark
+    public void marshalResponse() throws IOException {
+        EssResponse essResponse = new EssResponse();
+        essResponse.hits = page.getHits();
+        essResponse.records = new ArrayList<>(page.getRecords().size());
+        essResponse.trackingId = "benchmark";
+        for (CompletableFuture<FormattedRecord> record : page.getRecords()) {
+            essResponse.records.add(record.join().toElement());
+        }
+        marshalling.marshal(essResponse, NullOutputStream.INSTANCE);
+    }
+
+    /**
+     * Formatting that answers with the recorded marc record, parsed like an
+     * answer from OpenFormat
+     */
+    private static class CopyFormatting extends Formatting {
+
+        private static final ThreadLocal<DocumentBuilder> BUILDER = ThreadLocal.withInitial(XmlTools::newDocumentBuilder);
+
+        private final byte[] formatted;
+
+        private CopyFormatting(Settings settings) {
+            super(settings, new MetricRegistry(), null);
+            this.formatted = Payloads.formattedRecord();
+        }
+
+        @Override
+        public Callable<FormattedRecord> formattingCall(Object in, String outputFormat, String id, String trackingId, Deadline deadline) {
+            return () -> FormattedRecord.of(BUILDER.get().parse(new ByteArrayInputStream(formatted)).getDocumentElement());
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+
+        private static final NullOutputStream INSTANCE = new NullOutputStream();
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import dk.dbc.sru.sruresponse.SearchRetrieveResponse;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading an sru response from metaproxy
+ * <p>
+ * {@link #unmarshal()} is what {@link EssService#responseSru} does through
+ * the JAXB message body reader, the others are the streaming alternatives.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SruBenchmark {
+
+    @Param({"1", "10", "50"})
+    public int pageSize;
+
+    private byte[] response;
+
+    @Setup
+    public void setUp() {
+        response = Payloads.sruResponse(pageSize);
+    }
+
+    @Benchmark
+    public SearchRetrieveResponse unmarshal() throws Exception {
+        return Marshalling.INSTANCE.unmarshal(new ByteArrayInputStream(response), SearchRetrieveResponse.class);
+    }
+
+    @Benchmark
+    public long streamParse(Blackhole blackhole) throws Exception {
+        return SruStreamParser.parse(new ByteArrayInputStream(response), blackhole::consume);
+    }
+
+    @Benchmark
+    public long passthroughParse(Blackhole blackhole) throws Exception {
+        return SruStreamParser.parsePassthrough(new ByteArrayInputStream(response), blackhole::consume);
+    }
+}
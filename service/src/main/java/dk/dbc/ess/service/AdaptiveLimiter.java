@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Concurrency limit on calls to a downstream service, that adapts to its
+ * round trip time
+ * <p>
+ * The limit grows additively (by one per limit's worth of successful calls)
+ * as long as calls are answered within a tolerance of the lowest seen round
+ * trip time, and shrinks multiplicatively when a call fails or is slow.
+ * It shrinks at most once per round trip: calls that started before the last
+ * decrease were admitted under the old limit, and do not shrink it again.
+ * The lowest round trip time is remeasured over a sliding number of calls,
+ * so a downstream service that becomes faster or slower is followed.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class AdaptiveLimiter {
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final double rttTolerance;
+    private final int rttWindow;
+    private final long maxWaitNanos;
+    private final Meter rejections;
+    private final LongSupplier clock;
+
+    private double limit;
+    private int inFlight;
+    private long minRtt;
+    private long windowMinRtt;
+    private int windowCount;
+    private long lastDecrease;
+
+    public AdaptiveLimiter(String name, LimiterConfiguration config, MetricRegistry metrics) {
+        this(name, config, metrics, System::nanoTime);
+    }
+
+    AdaptiveLimiter(String name, LimiterConfiguration config, MetricRegistry metrics, LongSupplier clock) {
+        this.clock = clock;
+        this.minLimit = config.getMinLimit();
+        this.maxLimit = Math.max(minLimit, config.getMaxLimit());
+        this.backoffRatio = config.getBackoffRatio();
+        this.rttTolerance = config.getRttTolerance();
+        this.rttWindow = config.getRttWindow();
+        this.maxWaitNanos = config.getMaxWait().toNanoseconds();
+        this.limit = Math.min(maxLimit, Math.max(minLimit, config.getInitialLimit()));
+        this.minRtt = Long.MAX_VALUE;
+        this.windowMinRtt = Long.MAX_VALUE;
+        this.lastDecrease = clock.getAsLong();
+        String prefix = getClass().getCanonicalName() + "#" + name + ".";
+        this.rejections = metrics.meter(prefix + "rejections");
+        metrics.gauge(prefix + "limit", () -> (Gauge<Integer>) this::getLimit);
+        metrics.gauge(prefix + "inFlight", () -> (Gauge<Integer>) this::getInFlight);
+    }
+
+    /**
+     * Take a slot if one is free
+     * <p>
+     * When a slot is given, it has to be returned with
+     * {@link #onSuccess(long)}, {@link #onDropped(long)} or
+     * {@link #onIgnore()}
+     *
+     * @return if the call may be made
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight < (int) limit) {
+            inFlight++;
+            return true;
+        }
+        rejections.mark();
+        return false;
+    }
+
+    /**
+     * Wait (up to maxWait, but not past the deadline) for a slot
+     *
+     * @param deadline deadline of the call
+     * @return if the call may be made
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean acquire(Deadline deadline) throws InterruptedException {
+        long end = System.nanoTime() + Math.min(maxWaitNanos, deadline.remaining(TimeUnit.NANOSECONDS));
+        while (inFlight >= (int) limit) {
+            long left = end - System.nanoTime();
+            if (left <= 0) {
+                rejections.mark();
+                return false;
+            }
+            wait(left / 1_000_000L, (int) ( left % 1_000_000L ));
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * A call succeeded
+     *
+     * @param rtt nanoseconds the call took
+     */
+    public synchronized void onSuccess(long rtt) {
+        release();
+        if (rtt < windowMinRtt) {
+            windowMinRtt = rtt;
+        }
+        if (rtt < minRtt) {
+            minRtt = rtt;
+        }
+        if (++windowCount >= rttWindow) {
+            minRtt = windowMinRtt;
+            windowMinRtt = Long.MAX_VALUE;
+            windowCount = 0;
+        }
+        if (rtt > minRtt * rttTolerance) {
+            decrease(rtt);
+        } else if (inFlight + 1 >= limit / 2) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    /**
+     * A call failed (error or timeout)
+     *
+     * @param rtt nanoseconds the call took
+     */
+    public synchronized void onDropped(long rtt) {
+        release();
+        decrease(rtt);
+    }
+
+    /**
+     * A call ended without saying anything about the downstream service
+     */
+    public synchronized void onIgnore() {
+        release();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    private void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    private void decrease(long rtt) {
+        long now = clock.getAsLong();
+        if (now - rtt - lastDecrease < 0) {
+            return;
+        }
+        lastDecrease = now;
+        limit = Math.max(minLimit, limit * backoffRatio);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+import javax.ws.rs.core.Response;
+
+/**
+ * Circuit breaker and bulkhead around the metaproxy calls for one base
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class BaseGuard {
+
+    private final String base;
+    private final CircuitBreaker breaker;
+    private final int maxConcurrentCalls;
+    private final Semaphore bulkhead;
+    private final Meter breakerRejections;
+    private final Meter bulkheadRejections;
+
+    public BaseGuard(String base, CircuitBreakerConfiguration config, MetricRegistry metrics) {
+        this.base = base;
+        this.breaker = new CircuitBreaker(config);
+        this.maxConcurrentCalls = config.getMaxConcurrentCalls();
+        this.bulkhead = new Semaphore(maxConcurrentCalls);
+        this.breakerRejections = metrics.meter(metricName("breakerRejections"));
+        this.bulkheadRejections = metrics.meter(metricName("bulkheadRejections"));
+        metrics.gauge(metricName("state"), () -> (Gauge<String>) () -> breaker.getState().name());
+        metrics.gauge(metricName("inFlight"), () -> (Gauge<Integer>) () -> maxConcurrentCalls - bulkhead.availablePermits());
+    }
+
+    private String metricName(String name) {
+        return getClass().getCanonicalName() + "#" + base + "." + name;
+    }
+
+    /**
+     * Make a call to the base, unless the breaker is open or the bulkhead is
+     * full
+     * <p>
+     * Exceptions and server errors count as failures. Calls cancelled by
+     * the caller (eg. on timeout) are not counted.
+     *
+     * @param request the call
+     * @return the response or a future failed with
+     *         {@link BaseUnavailableException}
+     */
+    public CompletableFuture<Response> call(Supplier<CompletableFuture<Response>> request) {
+        if (!bulkhead.tryAcquire()) {
+            bulkheadRejections.mark();
+            return failed("Too many requests in progress for base " + base);
+        }
+        if (!breaker.tryAcquire()) {
+            bulkhead.release();
+            breakerRejections.mark();
+            return failed("Circuit breaker is open for base " + base);
+        }
+        long start = System.nanoTime();
+        CompletableFuture<Response> future;
+        try {
+            future = request.get();
+        } catch (RuntimeException ex) {
+            bulkhead.release();
+            breaker.onResult(false, System.nanoTime() - start);
+            throw ex;
+        }
+        return Futures.whenComplete(future, (response, ex) -> {
+            bulkhead.release();
+            if (Futures.isCancellation(ex)) {
+                breaker.onIgnore();
+                return;
+            }
+            boolean success = ex == null && response.getStatus() < 500;
+            breaker.onResult(success, System.nanoTime() - start);
+        });
+    }
+
+    private CompletableFuture<Response> failed(String message) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        future.completeExceptionally(new BaseUnavailableException(base, message));
+        return future;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A base is not searched, because its circuit breaker is open or too many
+ * requests to it are in progress
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class BaseUnavailableException extends RejectedExecutionException {
+
+    private static final long serialVersionUID = 0x6F3A9D2E1B4C5A78L;
+
+    private final String base;
+
+    public BaseUnavailableException(String base, String message) {
+        super(message);
+        this.base = base;
+    }
+
+    public String getBase() {
+        return base;
+    }
+}
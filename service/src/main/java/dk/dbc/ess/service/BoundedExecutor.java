@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread pool with a bounded queue, that rejects tasks when full
+ * <p>
+ * Threads are started as tasks arrive, up to the max, before tasks are
+ * queued, and stop again when idle for the keep alive time.
+ * <p>
+ * Queue depth, active threads, time spent in queue and rejections are
+ * reported to the metric registry.
+ * <p>
+ * Tasks given to {@link #execute(Runnable)} are not wrapped in a future, so
+ * an exception thrown by them is logged as uncaught, like in a plain thread
+ * pool.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class BoundedExecutor extends ThreadPoolExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(BoundedExecutor.class);
+
+    private final String name;
+    private final Timer timerQueueWait;
+    private final Meter rejections;
+
+    public BoundedExecutor(String name, ExecutorConfiguration config, MetricRegistry metrics) {
+        super(config.getMaxThreads(), config.getMaxThreads(),
+              config.getKeepAlive().toMilliseconds(), TimeUnit.MILLISECONDS,
+              new ArrayBlockingQueue<>(config.getQueueSize()),
+              threadFactory(name));
+        allowCoreThreadTimeOut(true);
+        this.name = name;
+        this.timerQueueWait = metrics.timer(metricName("queueWait"));
+        this.rejections = metrics.meter(metricName("rejections"));
+        metrics.register(metricName("queueDepth"), (Gauge<Integer>) () -> getQueue().size());
+        metrics.register(metricName("active"), (Gauge<Integer>) this::getActiveCount);
+        metrics.register(metricName("poolSize"), (Gauge<Integer>) this::getPoolSize);
+        setRejectedExecutionHandler((r, executor) -> {
+            rejections.mark();
+            throw new RejectedExecutionException("Executor " + name + " is saturated");
+        });
+    }
+
+    private String metricName(String metric) {
+        return getClass().getCanonicalName() + "#" + name + "." + metric;
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setUncaughtExceptionHandler((t, ex) -> log.error("Uncaught exception in " + t.getName(), ex));
+            return thread;
+        };
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command instanceof Queued) {
+            super.execute(command);
+        } else {
+            super.execute(new QueuedRunnable(command));
+        }
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return new QueuedTask<>(callable);
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        return new QueuedTask<>(runnable, value);
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        if (r instanceof Queued) {
+            long wait = System.nanoTime() - ( (Queued) r ).queued();
+            timerQueueWait.update(wait, TimeUnit.NANOSECONDS);
+        }
+        super.beforeExecute(t, r);
+    }
+
+    private interface Queued {
+
+        long queued();
+    }
+
+    private static class QueuedRunnable implements Runnable, Queued {
+
+        private final Runnable runnable;
+        private final long queued;
+
+        private QueuedRunnable(Runnable runnable) {
+            this.runnable = runnable;
+            this.queued = System.nanoTime();
+        }
+
+        @Override
+        public long queued() {
+            return queued;
+        }
+
+        @Override
+        public void run() {
+            runnable.run();
+        }
+    }
+
+    private static class QueuedTask<T> extends FutureTask<T> implements Queued {
+
+        private final long queued;
+
+        private QueuedTask(Callable<T> callable) {
+            super(callable);
+            this.queued = System.nanoTime();
+        }
+
+        private QueuedTask(Runnable runnable, T value) {
+            super(runnable, value);
+            this.queued = System.nanoTime();
+        }
+
+        @Override
+        public long queued() {
+            return queued;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker with closed, open and half open states
+ * <p>
+ * While closed, the outcome of the most recent calls is recorded, and when
+ * the share of failed calls exceeds a threshold the breaker opens. An open
+ * breaker rejects calls until the open duration has passed, then it lets a
+ * few trial calls through (half open). If they all succeed the breaker
+ * closes, if any fails it opens again.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureRateThreshold;
+    private final long slowCallNanos;
+    private final int minimumCalls;
+    private final long openNanos;
+    private final int halfOpenCalls;
+    private final LongSupplier clock;
+
+    private final boolean[] window;
+    private int windowPos;
+    private int windowCount;
+    private int windowFailures;
+
+    private State state;
+    private long openUntil;
+    private int trialPermits;
+    private int trialSuccesses;
+
+    public CircuitBreaker(CircuitBreakerConfiguration config) {
+        this(config, System::nanoTime);
+    }
+
+    CircuitBreaker(CircuitBreakerConfiguration config, LongSupplier clock) {
+        this.failureRateThreshold = config.getFailureRateThreshold();
+        this.slowCallNanos = config.getSlowCallThreshold().toNanoseconds();
+        this.minimumCalls = config.getMinimumCalls();
+        this.openNanos = config.getOpenDuration().toNanoseconds();
+        this.halfOpenCalls = config.getHalfOpenCalls();
+        this.clock = clock;
+        this.window = new boolean[config.getWindowSize()];
+        this.state = State.CLOSED;
+    }
+
+    /**
+     * Ask for permission to make a call
+     * <p>
+     * When permission is given, the outcome has to be reported with
+     * {@link #onResult(boolean, long)} or {@link #onIgnore()}
+     *
+     * @return if the call may be made
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+            case OPEN:
+                if (clock.getAsLong() - openUntil < 0) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                trialPermits = halfOpenCalls;
+                trialSuccesses = 0;
+            // fall through
+            case HALF_OPEN:
+                if (trialPermits == 0) {
+                    return false;
+                }
+                trialPermits--;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Report the outcome of a call
+     *
+     * @param success  if the call succeeded
+     * @param duration nanoseconds the call took
+     */
+    public synchronized void onResult(boolean success, long duration) {
+        boolean failure = !success || duration > slowCallNanos;
+        switch (state) {
+            case HALF_OPEN:
+                if (failure) {
+                    open();
+                } else if (++trialSuccesses >= halfOpenCalls) {
+                    close();
+                }
+                break;
+            case CLOSED:
+                record(failure);
+                if (windowCount >= minimumCalls &&
+                    windowFailures * 100 >= failureRateThreshold * windowCount) {
+                    open();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Report a call without an outcome, that was cancelled by the caller
+     * <p>
+     * A trial permit is given back, so the breaker can still close.
+     */
+    public synchronized void onIgnore() {
+        if (state == State.HALF_OPEN) {
+            trialPermits++;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void record(boolean failure) {
+        if (windowCount == window.length) {
+            if (window[windowPos]) {
+                windowFailures--;
+            }
+        } else {
+            windowCount++;
+        }
+        window[windowPos] = failure;
+        if (failure) {
+            windowFailures++;
+        }
+        windowPos = ( windowPos + 1 ) % window.length;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntil = clock.getAsLong() + openNanos;
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        windowPos = 0;
+        windowCount = 0;
+        windowFailures = 0;
+    }
+}
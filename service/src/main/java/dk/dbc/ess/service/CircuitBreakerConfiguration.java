@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import io.dropwizard.util.Duration;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class CircuitBreakerConfiguration {
+
+    @Min(1)
+    @Max(100)
+    private int failureRateThreshold = 50;
+
+    /**
+     * Percentage of failed (or slow) calls in the window, that opens the
+     * breaker
+     *
+     * @return percentage
+     */
+    public int getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    public void setFailureRateThreshold(int failureRateThreshold) {
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    @NotNull
+    private Duration slowCallThreshold = Duration.seconds(10);
+
+    /**
+     * Calls taking longer than this count as failed
+     *
+     * @return duration
+     */
+    public Duration getSlowCallThreshold() {
+        return slowCallThreshold;
+    }
+
+    public void setSlowCallThreshold(Duration slowCallThreshold) {
+        this.slowCallThreshold = slowCallThreshold;
+    }
+
+    @Min(1)
+    private int windowSize = 20;
+
+    /**
+     * Number of most recent calls the failure rate is computed from
+     *
+     * @return number of calls
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    @Min(1)
+    private int minimumCalls = 10;
+
+    /**
+     * Number of calls in the window before the breaker can open
+     *
+     * @return number of calls
+     */
+    public int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    public void setMinimumCalls(int minimumCalls) {
+        this.minimumCalls = minimumCalls;
+    }
+
+    @NotNull
+    private Duration openDuration = Duration.seconds(30);
+
+    /**
+     * How long the breaker stays open, before letting trial calls through
+     *
+     * @return duration
+     */
+    public Duration getOpenDuration() {
+        return openDuration;
+    }
+
+    public void setOpenDuration(Duration openDuration) {
+        this.openDuration = openDuration;
+    }
+
+    @Min(1)
+    private int halfOpenCalls = 3;
+
+    /**
+     * Number of successful trial calls that closes the breaker
+     *
+     * @return number of calls
+     */
+    public int getHalfOpenCalls() {
+        return halfOpenCalls;
+    }
+
+    public void setHalfOpenCalls(int halfOpenCalls) {
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    @Min(1)
+    private int maxConcurrentCalls = 32;
+
+    /**
+     * Max number of calls to a base in flight at once (bulkhead)
+     *
+     * @return number of calls
+     */
+    public int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    public void setMaxConcurrentCalls(int maxConcurrentCalls) {
+        this.maxConcurrentCalls = maxConcurrentCalls;
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreakerConfiguration{" + "failureRateThreshold=" + failureRateThreshold + ", slowCallThreshold=" + slowCallThreshold + ", windowSize=" + windowSize + ", minimumCalls=" + minimumCalls + ", openDuration=" + openDuration + ", halfOpenCalls=" + halfOpenCalls + ", maxConcurrentCalls=" + maxConcurrentCalls + '}';
+    }
+}
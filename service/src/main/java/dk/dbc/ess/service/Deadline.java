@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.core.Configuration;
+import org.glassfish.jersey.client.ClientProperties;
+
+/**
+ * Point in time, a request has to be answered by
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public final class Deadline {
+
+    /**
+     * No deadline
+     */
+    public static final Deadline NONE = new Deadline(0L, false);
+
+    private final long at;
+    private final boolean bounded;
+
+    private Deadline(long at, boolean bounded) {
+        this.at = at;
+        this.bounded = bounded;
+    }
+
+    /**
+     * Deadline some time from now
+     *
+     * @param timeout time until deadline
+     * @param unit    unit of timeout
+     * @return deadline
+     */
+    public static Deadline in(long timeout, TimeUnit unit) {
+        return new Deadline(System.nanoTime() + unit.toNanos(timeout), true);
+    }
+
+    public boolean isBounded() {
+        return bounded;
+    }
+
+    public boolean isExpired() {
+        return bounded && at - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Time left
+     *
+     * @param unit unit of result
+     * @return time until deadline (at least 0), or Long.MAX_VALUE if
+     *         unbounded
+     */
+    public long remaining(TimeUnit unit) {
+        if (!bounded) {
+            return Long.MAX_VALUE;
+        }
+        return unit.convert(Math.max(0L, at - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Lower the read timeout of a request to the time left, if that is
+     * shorter than the client's own read timeout
+     *
+     * @param request request being built
+     * @param client  configuration of the client building it
+     */
+    public void limit(Invocation.Builder request, Configuration client) {
+        if (!bounded) {
+            return;
+        }
+        long left = Math.max(1L, remaining(TimeUnit.MILLISECONDS));
+        Object configured = client.getProperty(ClientProperties.READ_TIMEOUT);
+        if (configured instanceof Number &&
+            ( (Number) configured ).longValue() > 0 &&
+            ( (Number) configured ).longValue() <= left) {
+            return;
+        }
+        request.property(ClientProperties.READ_TIMEOUT, (int) Math.min(Integer.MAX_VALUE, left));
+    }
+
+    @Override
+    public String toString() {
+        return bounded ? "Deadline{in " + remaining(TimeUnit.MILLISECONDS) + "ms}" : "Deadline{none}";
+    }
+}
@@ -20,16 +20,21 @@ package dk.dbc.ess.service;
 
 import dk.dbc.dropwizard.HealthCheckHTTPGet;
 import com.codahale.metrics.MetricRegistry;
-import com.codahale.metrics.health.HealthCheck;
 import com.codahale.metrics.health.HealthCheckRegistry;
 import dk.dbc.dropwizard.DbcApplication;
 import io.dropwizard.assets.AssetsBundle;
 import io.dropwizard.client.JerseyClientBuilder;
+import io.dropwizard.client.JerseyClientConfiguration;
 import io.dropwizard.jersey.setup.JerseyEnvironment;
+import io.dropwizard.lifecycle.ExecutorServiceManager;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Pattern;
 import javax.ws.rs.client.Client;
+import org.glassfish.jersey.client.ClientProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -71,17 +76,71 @@ public class EssApplication extends DbcApplication<EssConfiguration> {
         HealthCheckRegistry health = env.healthChecks();
         MetricRegistry metrics = env.metrics();
 
-        Client client = new JerseyClientBuilder(env)
-                .using(config.getJerseyClient())
-                .build(getName());
+        Client client = client(env, config.getJerseyClient(), "health");
+        Client metaProxyClient = client(env, config.getMetaProxyClient(), "metaproxy");
+        Client openFormatClient = client(env, config.getOpenFormatClient(), "openformat");
+
+        ExecutorService formattingExecutor = new BoundedExecutor("formatting", config.getFormattingExecutor(), metrics);
+        env.lifecycle().manage(new ExecutorServiceManager(formattingExecutor, Duration.seconds(5), "formatting"));
+        ExecutorService responseExecutor = new BoundedExecutor("responses", config.getResponseExecutor(), metrics);
+        env.lifecycle().manage(new ExecutorServiceManager(responseExecutor, Duration.seconds(5), "responses"));
 
-        HealthCheck metaProxyHealth = new HealthCheckHTTPGet(client, settings.getMetaProxyUrl());
-        HealthCheck openFormatHealth = new HealthCheckHTTPGet(client, settings.getOpenFormatUrl() + "?HowRU", Pattern.compile("Gr8"));
+        HealthMonitor healthMonitor = new HealthMonitor(settings.getHealthCheckInterval());
+        List<String> metaProxyUrls = settings.getMetaProxyUrls();
+        for (String url : metaProxyUrls) {
+            healthMonitor.register(checkName("metaproxy", url, metaProxyUrls),
+                                   new HealthCheckHTTPGet(client, url));
+        }
+        List<String> openFormatUrls = settings.getOpenFormatUrls();
+        for (String url : openFormatUrls) {
+            healthMonitor.register(checkName("openformat", url, openFormatUrls),
+                                   new HealthCheckHTTPGet(client, url + "?HowRU", Pattern.compile("Gr8")));
+        }
+        env.lifecycle().manage(healthMonitor);
 
-        jersey.register(new EssService(settings, metrics, client));
-        jersey.register(new HowRU(metaProxyHealth, openFormatHealth));
+        jersey.register(new EssService(settings, metrics, metaProxyClient, openFormatClient, formattingExecutor, responseExecutor));
+        jersey.register(new HowRU(healthMonitor));
+        env.admin().addServlet("prometheus", new PrometheusServlet(metrics))
+                .addMapping("/prometheus");
 
-        health.register("downstream - metaproxy", metaProxyHealth);
-        health.register("downstream - openformat", openFormatHealth);
+        for (String name : healthMonitor.getNames()) {
+            health.register(name, healthMonitor.cached(name));
+        }
+    }
+
+    /**
+     * Name of the health check for a downstream endpoint, with the url when
+     * there is more than one
+     *
+     * @param service name of the downstream service
+     * @param url     endpoint
+     * @param urls    all endpoints of the service
+     * @return name of the health check
+     */
+    private static String checkName(String service, String url, List<String> urls) {
+        if (urls.size() == 1) {
+            return "downstream - " + service;
+        }
+        return "downstream - " + service + " " + url;
+    }
+
+    /**
+     * Build a client with its own connection pool
+     * <p>
+     * The pool is instrumented as
+     * org.apache.http.conn.HttpClientConnectionManager.{name}
+     *
+     * @param env    environment
+     * @param config client configuration
+     * @param name   name of the client, used for metrics and threads
+     * @return client
+     */
+    private static Client client(Environment env, JerseyClientConfiguration config, String name) {
+        Client client = new JerseyClientBuilder(env)
+                .using(config)
+                .withProperty(ClientProperties.READ_TIMEOUT, (int) config.getTimeout().toMilliseconds())
+                .build(name);
+        client.register(new MarshallingProvider(Marshalling.INSTANCE));
+        return client;
     }
 }
@@ -33,6 +33,11 @@ public class EssConfiguration extends DbcConfiguration {
     @NotNull
     private JerseyClientConfiguration jerseyClient = new JerseyClientConfiguration();
 
+    /**
+     * Client used by the health checks
+     *
+     * @return configuration
+     */
     public JerseyClientConfiguration getJerseyClient() {
         return jerseyClient;
     }
@@ -41,6 +46,64 @@ public class EssConfiguration extends DbcConfiguration {
         this.jerseyClient = jerseyClient;
     }
 
+    @Valid
+    @NotNull
+    private JerseyClientConfiguration metaProxyClient = new JerseyClientConfiguration();
+
+    /**
+     * Client for searches in metaproxy, with a connection pool of its own
+     *
+     * @return configuration
+     */
+    public JerseyClientConfiguration getMetaProxyClient() {
+        return metaProxyClient;
+    }
+
+    public void setMetaProxyClient(JerseyClientConfiguration metaProxyClient) {
+        this.metaProxyClient = metaProxyClient;
+    }
+
+    @Valid
+    @NotNull
+    private JerseyClientConfiguration openFormatClient = new JerseyClientConfiguration();
+
+    /**
+     * Client for formatting in OpenFormat, with a connection pool of its own
+     *
+     * @return configuration
+     */
+    public JerseyClientConfiguration getOpenFormatClient() {
+        return openFormatClient;
+    }
+
+    public void setOpenFormatClient(JerseyClientConfiguration openFormatClient) {
+        this.openFormatClient = openFormatClient;
+    }
+
+    @Valid
+    @NotNull
+    private ExecutorConfiguration formattingExecutor = new ExecutorConfiguration();
+
+    public ExecutorConfiguration getFormattingExecutor() {
+        return formattingExecutor;
+    }
+
+    public void setFormattingExecutor(ExecutorConfiguration formattingExecutor) {
+        this.formattingExecutor = formattingExecutor;
+    }
+
+    @Valid
+    @NotNull
+    private ExecutorConfiguration responseExecutor = new ExecutorConfiguration();
+
+    public ExecutorConfiguration getResponseExecutor() {
+        return responseExecutor;
+    }
+
+    public void setResponseExecutor(ExecutorConfiguration responseExecutor) {
+        this.responseExecutor = responseExecutor;
+    }
+
     @Valid
     @NotNull
     private Settings settings = new Settings();
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import dk.dbc.ess.service.response.BaseResult;
+import dk.dbc.ess.service.response.EssResponse;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Writes an {@link EssResponse} document record by record
+ * <p>
+ * The envelope and hits are written at once, each record is flushed as soon
+ * as it (and those before it) has been formatted, and the trackingId is
+ * written last. Serialized records are copied into the response as bytes.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class EssResponseWriter implements StreamingOutput {
+
+    private static final Logger log = LoggerFactory.getLogger(EssResponseWriter.class);
+    private static final XMLOutputFactory XOF = newXMLOutputFactory();
+
+    private static XMLOutputFactory newXMLOutputFactory() {
+        synchronized (XMLOutputFactory.class) {
+            XMLOutputFactory factory = XMLOutputFactory.newInstance();
+            factory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+            return factory;
+        }
+    }
+
+    private final long hits;
+    private final List<BaseResult> bases;
+    private final List<CompletableFuture<FormattedRecord>> records;
+    private final String trackingId;
+
+    public EssResponseWriter(Page page, String trackingId) {
+        this.hits = page.getHits();
+        this.bases = page.getBases();
+        this.records = new ArrayList<>(page.getRecords());
+        this.trackingId = trackingId;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        try {
+            XMLStreamWriter writer = XOF.createXMLStreamWriter(output, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeStartElement("", "response", EssResponse.NS);
+            writer.writeDefaultNamespace(EssResponse.NS);
+            writer.writeStartElement("", "hits", EssResponse.NS);
+            writer.writeCharacters(Long.toString(hits));
+            writer.writeEndElement();
+            if (bases != null) {
+                writer.writeStartElement("", "bases", EssResponse.NS);
+                for (BaseResult base : bases) {
+                    writer.writeEmptyElement("", "base", EssResponse.NS);
+                    writer.writeAttribute("name", base.name);
+                    if (base.hits != null) {
+                        writer.writeAttribute("hits", Long.toString(base.hits));
+                    }
+                    writer.writeAttribute("status", base.status);
+                }
+                writer.writeEndElement();
+            }
+            writer.writeStartElement("", "records", EssResponse.NS);
+            writer.flush();
+            for (int i = 0 ; i < records.size() ; i++) {
+                FormattedRecord record = record(records.get(i));
+                records.set(i, null); // Release the record as soon as it is written
+                record.write(writer, output);
+                writer.flush();
+            }
+            writer.writeEndElement();
+            writer.writeStartElement("", "trackingId", EssResponse.NS);
+            writer.writeCharacters(trackingId);
+            writer.writeEndElement();
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            cancel();
+            throw new InterruptedIOException("Interrupted while waiting for record for: " + trackingId);
+        } catch (XMLStreamException | RuntimeException ex) {
+            cancel();
+            log.error("Error writing response: " + ex.getMessage() + " for: " + trackingId);
+            throw new IOException(ex);
+        }
+    }
+
+    private FormattedRecord record(CompletableFuture<FormattedRecord> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            return FormattedRecord.of(Page.errorDocument(ex.getCause() == null ? ex : ex.getCause(), trackingId));
+        } catch (CancellationException ex) {
+            return FormattedRecord.of(Page.errorDocument(ex, trackingId));
+        }
+    }
+
+    /**
+     * Cancel formatting of the records not yet written
+     */
+    void cancel() {
+        for (CompletableFuture<FormattedRecord> future : records) {
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    static void writeNode(XMLStreamWriter writer, Node node) throws XMLStreamException {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                writeElement(writer, (Element) node);
+                break;
+            case Node.TEXT_NODE:
+                writer.writeCharacters(node.getNodeValue());
+                break;
+            case Node.CDATA_SECTION_NODE:
+                writer.writeCData(node.getNodeValue());
+                break;
+            case Node.COMMENT_NODE:
+                writer.writeComment(node.getNodeValue());
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                writer.writeProcessingInstruction(node.getNodeName(), node.getNodeValue());
+                break;
+            case Node.ENTITY_REFERENCE_NODE:
+                writeChildren(writer, node);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Write an element, the writer repairs namespace declarations that are
+     * not present as attributes
+     */
+    private static void writeElement(XMLStreamWriter writer, Element element) throws XMLStreamException {
+        writer.writeStartElement(nonNull(element.getPrefix()), localName(element), nonNull(element.getNamespaceURI()));
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0 ; i < attributes.getLength() ; i++) {
+            Attr attr = (Attr) attributes.item(i);
+            if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI())) {
+                if (XMLConstants.XMLNS_ATTRIBUTE.equals(attr.getPrefix())) {
+                    writer.writeNamespace(attr.getLocalName(), attr.getValue());
+                } else {
+                    writer.writeDefaultNamespace(attr.getValue());
+                }
+            }
+        }
+        for (int i = 0 ; i < attributes.getLength() ; i++) {
+            Attr attr = (Attr) attributes.item(i);
+            String namespace = attr.getNamespaceURI();
+            if (namespace == null) {
+                writer.writeAttribute(localName(attr), attr.getValue());
+            } else if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(namespace)) {
+                writer.writeAttribute(nonNull(attr.getPrefix()), namespace, localName(attr), attr.getValue());
+            }
+        }
+        writeChildren(writer, element);
+        writer.writeEndElement();
+    }
+
+    private static void writeChildren(XMLStreamWriter writer, Node node) throws XMLStreamException {
+        for (Node child = node.getFirstChild() ; child != null ; child = child.getNextSibling()) {
+            writeNode(writer, child);
+        }
+    }
+
+    private static String localName(Node node) {
+        String localName = node.getLocalName();
+        return localName == null ? node.getNodeName() : localName;
+    }
+
+    private static String nonNull(String value) {
+        return value == null ? "" : value;
+    }
+}
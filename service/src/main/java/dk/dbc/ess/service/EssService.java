@@ -23,7 +23,10 @@ import com.codahale.metrics.Timer;
 import dk.dbc.sru.sruresponse.Record;
 import dk.dbc.sru.sruresponse.Records;
 import dk.dbc.sru.sruresponse.SearchRetrieveResponse;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
@@ -32,20 +35,31 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Element;
+import dk.dbc.ess.service.response.BaseResult;
 import dk.dbc.ess.service.response.EssResponse;
-import dk.dbc.sru.sruresponse.RecordXMLEscapingDefinition;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import javax.validation.constraints.NotNull;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.client.Invocation;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
+import javax.ws.rs.client.InvocationCallback;
 
 /**
  *
@@ -58,167 +72,670 @@ public class EssService {
 
     Client client;
     Collection<String> knownBases;
-    String sruTargetUrl;
+    LoadBalancer sruEndpoints;
     Formatting formatting;
+    FormatCache formatCache;
+    SruCache sruCache;
 
     ExecutorService executor;
+    ExecutorService responseExecutor;
     Timer timerSruRequest;
     Timer timerSruReadResponse;
     Timer timerRequest;
+    TaggedMetrics taggedMetrics;
     int maxPageSize;
+    int maxRows;
+    int pageConcurrency;
+    long baseTimeout;
+    long requestTimeout;
+    int formatBatchSize;
+    boolean streamSruResponse;
+    boolean streamEssResponse;
+    boolean rawRecords;
+    boolean passthroughRecords;
+    boolean coalesceSearches;
+    ConcurrentHashMap<List<Object>, CompletableFuture<Page>> flights;
+    Prefetcher prefetcher;
+    Hedger hedger;
+    Map<String, BaseGuard> guards;
+    AdaptiveLimiter sruLimiter;
 
-    public EssService(Settings settings, MetricRegistry metrics, Client client) {
-        this.client = client;
+    public EssService(Settings settings, MetricRegistry metrics, Client sruClient, Client formatClient, ExecutorService executor, ExecutorService responseExecutor) {
+        this.client = sruClient;
 
         this.knownBases = settings.getBases();
-        this.sruTargetUrl = settings.getMetaProxyUrl();
+        this.sruEndpoints = new LoadBalancer("metaproxy", settings.getMetaProxyUrls(), settings.getLoadBalancer(), metrics);
         this.maxPageSize = settings.getMaxPageSize();
+        this.maxRows = settings.getMaxRows();
+        this.pageConcurrency = settings.getPageConcurrency();
+        this.baseTimeout = settings.getBaseTimeout().toMilliseconds();
+        this.requestTimeout = settings.getRequestTimeout().toMilliseconds();
+        this.formatBatchSize = settings.getFormatBatchSize();
+        this.streamSruResponse = settings.getStreamSruResponse();
+        this.streamEssResponse = settings.getStreamEssResponse();
+        this.rawRecords = settings.getRawRecords();
+        this.passthroughRecords = settings.getPassthroughRecords();
+        this.coalesceSearches = settings.getCoalesceSearches();
+        this.flights = new ConcurrentHashMap<>();
+        this.sruLimiter = new AdaptiveLimiter("metaproxy", settings.getSruLimiter(), metrics);
+        this.guards = new HashMap<>();
+        for (String base : knownBases) {
+            guards.put(base, new BaseGuard(base, settings.getCircuitBreaker(), metrics));
+        }
+        if (settings.getPrefetchNextPage()) {
+            this.prefetcher = new Prefetcher(settings.getPrefetchBudget(), settings.getPrefetchTtl(), executor, metrics);
+        }
 
-        this.executor = Executors.newCachedThreadPool();
-        this.formatting = new Formatting(settings, metrics, client);
+        this.executor = executor;
+        this.responseExecutor = responseExecutor;
+        this.formatting = new Formatting(settings, metrics, formatClient);
+        if (settings.getHedgeFormatRequests()) {
+            this.hedger = new Hedger(formatting.getFormatRequestTimer(), settings.getHedgePercentile(), settings.getHedgeBudget(), metrics);
+        }
+        String formatCacheSpec = settings.getFormatCache();
+        if (formatCacheSpec != null && !formatCacheSpec.isEmpty()) {
+            this.formatCache = new FormatCache(formatCacheSpec, metrics);
+        }
+        if (settings.getSruCacheSize() > 0) {
+            this.sruCache = new SruCache(settings.getSruCacheSize(), settings.getSruCacheTtl(), metrics);
+        }
 
         this.timerSruRequest = mkTimer(metrics, "sruRequest");
         this.timerSruReadResponse = mkTimer(metrics, "sruReadResponse");
         this.timerRequest = mkTimer(metrics, "Request");
+        this.taggedMetrics = new TaggedMetrics(metrics, EssService.class);
     }
 
     private Timer mkTimer(MetricRegistry metrics, String name) {
-        return metrics.timer(getClass().getCanonicalName() + "#" + name);
+        return metrics.timer(getClass().getCanonicalName() + "#" + name, () -> new Timer(new HdrReservoir()));
     }
 
     @GET
     @Path("rpn/")
-    public Response requestRPN(@QueryParam("base") @NotNull String base,
-                               @QueryParam("query") @NotNull String query,
-                               @QueryParam("start") Integer start,
-                               @QueryParam("rows") Integer rows,
-                               @QueryParam("format") @NotNull String format,
-                               @QueryParam("trackingId") String trackingId) {
-        return processRequest(base, query, start, rows, format, trackingId, true);
+    public void requestRPN(@Suspended AsyncResponse asyncResponse,
+                           @QueryParam("base") @NotNull String base,
+                           @QueryParam("query") @NotNull String query,
+                           @QueryParam("start") Integer start,
+                           @QueryParam("rows") Integer rows,
+                           @QueryParam("format") @NotNull String format,
+                           @QueryParam("trackingId") String trackingId,
+                           @QueryParam("timeout") Long timeout) {
+        RequestTiming timing = new RequestTiming();
+        processRequest(base, query, start, rows, format, trackingId, timeout, true, timing)
+                .thenAccept(response -> resumeAsync(asyncResponse, response, timing));
     }
 
     @GET
-    public Response requestCQL(@QueryParam("base") @NotNull String base,
-                               @QueryParam("query") @NotNull String query,
-                               @QueryParam("start") Integer start,
-                               @QueryParam("rows") Integer rows,
-                               @QueryParam("format") @NotNull String format,
-                               @QueryParam("trackingId") String trackingId) {
-        return processRequest(base, query, start, rows, format, trackingId, false);
+    public void requestCQL(@Suspended AsyncResponse asyncResponse,
+                           @QueryParam("base") @NotNull String base,
+                           @QueryParam("query") @NotNull String query,
+                           @QueryParam("start") Integer start,
+                           @QueryParam("rows") Integer rows,
+                           @QueryParam("format") @NotNull String format,
+                           @QueryParam("trackingId") String trackingId,
+                           @QueryParam("timeout") Long timeout) {
+        RequestTiming timing = new RequestTiming();
+        processRequest(base, query, start, rows, format, trackingId, timeout, false, timing)
+                .thenAccept(response -> resumeAsync(asyncResponse, response, timing));
+    }
+
+    /**
+     * Send the response from the response executor
+     * <p>
+     * The response is written by the resuming thread, and writing a streamed
+     * response waits for the records to be formatted. The thread that
+     * completed the search is a metaproxy client thread or the timeouts
+     * thread, that must not be held up by that. Only when the executor is
+     * full is a (small) error response sent from the calling thread.
+     */
+    private void resumeAsync(AsyncResponse asyncResponse, Response response, RequestTiming timing) {
+        if (responseExecutor == null) {
+            resume(asyncResponse, response, timing);
+            return;
+        }
+        try {
+            responseExecutor.execute(() -> resume(asyncResponse, response, timing));
+        } catch (RejectedExecutionException ex) {
+            log.error("Response rejected: " + ex.getMessage() + " for: " + timing.getTrackingId());
+            if (response.getEntity() instanceof EssResponseWriter) {
+                ( (EssResponseWriter) response.getEntity() ).cancel();
+            }
+            resume(asyncResponse, serviceUnavailable("Service Unavailable"), timing);
+        }
+    }
+
+    /**
+     * Send the response, and log where the time went
+     * <p>
+     * The response is written by the resuming thread, so this also measures
+     * serialization.
+     */
+    private void resume(AsyncResponse asyncResponse, Response response, RequestTiming timing) {
+        long begin = System.nanoTime();
+        try {
+            asyncResponse.resume(response);
+        } finally {
+            timing.log(System.nanoTime() - begin);
+        }
     }
 
-    private Response processRequest(String base, String query, Integer start, Integer rows, String format, String trackingId, boolean isRPN) {
+    /**
+     * Search and format a page
+     * <p>
+     * The returned future never completes exceptionally, errors are mapped
+     * to an error response.
+     * <p>
+     * When the deadline passes, formatting still in progress is cancelled,
+     * and the response has error documents for those records.
+     *
+     * @param timeout milliseconds the caller will wait, can only lower the
+     *                configured request timeout
+     * @param timing  latency breakdown of the request
+     * @return future response
+     */
+    private CompletableFuture<Response> processRequest(String base, String query, Integer start, Integer rows, String format, String trackingId, Long timeout, boolean isRPN, RequestTiming timing) {
         if (start == null) {
             start = 1;
         }
-        if (rows == null || rows >= maxPageSize) {
+        if (rows == null) {
             rows = maxPageSize;
+        } else if (rows >= Math.max(maxRows, maxPageSize)) {
+            rows = Math.max(maxRows, maxPageSize);
         }
         if (trackingId == null || trackingId.isEmpty()) {
             trackingId = UUID.randomUUID().toString();
         }
-        if (!knownBases.contains(base)) {
-            return serverError("Unknown base requested");
+        List<String> bases = Arrays.stream(base.split(","))
+                .map(String::trim)
+                .filter(b -> !b.isEmpty())
+                .collect(Collectors.toList());
+        if (bases.isEmpty() || !knownBases.containsAll(bases)) {
+            return CompletableFuture.completedFuture(serverError("Unknown base requested"));
         }
         log.info("base: " + base + "; format: " + format +
                 "; start: " + start + "; rows: " + rows +
                 "; trackingId: " + trackingId + "; query: " + query + "; type: " + (isRPN ? "rpn" : "cql"));
 
-        try (Timer.Context timer = timerRequest.time()) {
+        String id = trackingId;
+        timing.setTrackingId(id);
+        String baseTag = String.join("+", bases);
+        String queryTag = isRPN ? "rpn" : "cql";
+        Deadline deadline = deadline(timeout);
+        Timer.Context timer = timerRequest.time();
+        CompletableFuture<Response> future;
+        try {
             String queryParam = isRPN ? "x-pquery" : "query";
-            Response response = requestSru(base, queryParam, query, start, rows);
-
-            if (!response.getStatusInfo().equals(Response.Status.OK)) {
-                log.error("Search failed with http code: " + response.getStatusInfo() + " for: " + trackingId);
-                return serverError("Internal Server Error");
+            int startRecord = start;
+            int maximumRecords = rows;
+            CompletableFuture<Page> page;
+            if (bases.size() > 1) {
+                page = federatedPage(bases, queryParam, query, startRecord, maximumRecords, format, id, deadline);
+            } else {
+                CompletableFuture<Page> prefetched = prefetcher == null ? null :
+                                                     prefetcher.take(Arrays.asList(base, queryParam, query, startRecord, maximumRecords, format));
+                if (prefetched != null) {
+                    log.info("Using prefetched page for: " + id);
+                    page = Futures.cancelling(prefetched
+                            .handle((p, ex) -> p)
+                            .thenCompose(p -> p != null ? CompletableFuture.completedFuture(p) :
+                                              fetchPages(base, queryParam, query, startRecord, maximumRecords, format, id, deadline, executor)),
+                            prefetched);
+                } else {
+                    page = fetchPages(base, queryParam, query, startRecord, maximumRecords, format, id, deadline, executor);
+                }
+                if (prefetcher != null) {
+                    // Only when this page is formatted, so it is not slowed down
+                    page.thenAccept(p -> p.done()
+                            .thenRun(() -> prefetchNext(p, base, queryParam, query, startRecord, maximumRecords, format, id)));
+                }
             }
+            if (deadline.isBounded()) {
+                page = Timeouts.within(page, deadline.remaining(TimeUnit.MILLISECONDS), "Search", Page::cancel)
+                        .thenApply(p -> p.expireAt(deadline));
+            }
+            future = page.thenCompose(p -> {
+                timing.setPage(p.getTimings());
+                taggedMetrics.histogram("hits", "base", baseTag, "query", queryTag).update(p.getHits());
+                taggedMetrics.histogram("records", "base", baseTag, "format", format).update(p.getRecords().size());
+                return respond(p, id);
+            });
+        } catch (Exception ex) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(ex);
+        }
+        return future.exceptionally(ex -> errorResponse(ex, id))
+                .thenApply(timing::withHeader)
+                .whenComplete((response, ex) -> {
+                    long elapsed = timer.stop();
+                    taggedMetrics.timer("request", "base", baseTag, "query", queryTag, "format", format,
+                                        "outcome", outcome(response))
+                            .update(elapsed, TimeUnit.NANOSECONDS);
+                });
+    }
 
-            SearchRetrieveResponse sru = responseSru(response);
+    /**
+     * The deadline of a request
+     *
+     * @param timeout timeout requested by the caller or null
+     * @return deadline
+     */
+    private Deadline deadline(Long timeout) {
+        long millis = requestTimeout;
+        if (timeout != null && timeout > 0 && ( millis <= 0 || timeout < millis )) {
+            millis = timeout;
+        }
+        return millis > 0 ? Deadline.in(millis, TimeUnit.MILLISECONDS) : Deadline.NONE;
+    }
 
-            return buildResponse(sru, format, base + ":", trackingId);
+    /**
+     * Search several bases in parallel
+     * <p>
+     * Records are grouped by base, in the order the bases are given. A base
+     * that fails or times out is marked as such in the result, only if all
+     * bases fail is the search failed.
+     *
+     * @return future page with a result per base
+     */
+    private CompletableFuture<Page> federatedPage(List<String> bases, String queryParam, String query, int start, int rows, String format, String trackingId, Deadline deadline) {
+        List<CompletableFuture<Page>> pages = new ArrayList<>(bases.size());
+        for (String base : bases) {
+            pages.add(Timeouts.within(fetchPages(base, queryParam, query, start, rows, format, trackingId, deadline, executor),
+                                      baseTimeout, "Search in " + base, Page::cancel));
+        }
+        CompletableFuture<Page> result = CompletableFuture.allOf(pages.toArray(new CompletableFuture<?>[pages.size()]))
+                .handle((v, e) -> {
+                    long hits = 0;
+                    List<CompletableFuture<FormattedRecord>> records = new ArrayList<>();
+                    List<BaseResult> results = new ArrayList<>(bases.size());
+                    Timings timings = new Timings();
+                    Throwable error = null;
+                    for (int i = 0 ; i < bases.size() ; i++) {
+                        String base = bases.get(i);
+                        try {
+                            Page page = pages.get(i).join();
+                            hits += page.getHits();
+                            records.addAll(page.getRecords());
+                            timings.merge(page.getTimings());
+                            results.add(new BaseResult(base, page.getHits(), BaseResult.OK));
+                        } catch (CompletionException | CancellationException ex) {
+                            Throwable cause = ex.getCause() == null ? ex : ex.getCause();
+                            log.error("Search in base " + base + " failed: " + cause.getMessage() + " for: " + trackingId);
+                            results.add(new BaseResult(base, null, status(cause)));
+                            if (error == null) {
+                                error = ex;
+                            }
+                        }
+                    }
+                    if (results.stream().noneMatch(r -> BaseResult.OK.equals(r.status))) {
+                        throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+                    }
+                    return new Page(hits, records, results, timings);
+                });
+        for (CompletableFuture<Page> page : pages) {
+            Futures.cancelling(result, page);
+        }
+        return result;
+    }
+
+    private static String status(Throwable cause) {
+        if (cause instanceof TimeoutException) {
+            return BaseResult.TIMEOUT;
+        }
+        if (cause instanceof RejectedExecutionException) {
+            return BaseResult.UNAVAILABLE;
+        }
+        return BaseResult.ERROR;
+    }
+
+    /**
+     * Get a range of records, split into parallel page requests if it is
+     * larger than a page
+     *
+     * @return future page, owned by the caller
+     */
+    private CompletableFuture<Page> fetchPages(String base, String queryParam, String query, int start, int rows, String format, String trackingId, Deadline deadline, ExecutorService formatExecutor) {
+        if (rows <= maxPageSize) {
+            return fetchPage(base, queryParam, query, start, rows, format, trackingId, deadline, formatExecutor);
+        }
+        return PageFanOut.fetch((pageStart, pageRows) -> fetchPage(base, queryParam, query, pageStart, pageRows, format, trackingId, deadline, formatExecutor),
+                                start, rows, maxPageSize, pageConcurrency);
+    }
+
+    /**
+     * Get a page, shared with identical searches in progress if searches are
+     * coalesced
+     * <p>
+     * A shared search runs with the configured request timeout, not the
+     * deadline of the first caller, so a caller with a short deadline cannot
+     * cut the others off.
+     *
+     * @return future page, owned by the caller
+     */
+    private CompletableFuture<Page> fetchPage(String base, String queryParam, String query, int start, int rows, String format, String trackingId, Deadline deadline, ExecutorService formatExecutor) {
+        if (!coalesceSearches) {
+            return requestPage(base, queryParam, query, start, rows, format, trackingId, deadline, formatExecutor);
+        }
+        List<Object> key = Arrays.asList(base, queryParam, query, start, rows, format);
+        CompletableFuture<Page> flight = new CompletableFuture<>();
+        CompletableFuture<Page> running = flights.putIfAbsent(key, flight);
+        if (running != null) {
+            log.info("Sharing search in progress for: " + trackingId);
+            return running.thenApply(Page::copy);
+        }
+        requestPage(base, queryParam, query, start, rows, format, trackingId, deadline(null), formatExecutor)
+                .whenComplete((page, ex) -> {
+                    if (ex != null) {
+                        flight.completeExceptionally(ex);
+                    } else {
+                        flight.complete(page);
+                    }
+                });
+        flight.thenCompose(Page::done)
+                .whenComplete((v, ex) -> flights.remove(key, flight));
+        return flight.thenApply(Page::copy);
+    }
+
+    /**
+     * Start fetching the page following this one in the background, formatted
+     * on the prefetcher's own threads
+     */
+    private void prefetchNext(Page page, String base, String queryParam, String query, int start, int rows, String format, String trackingId) {
+        int next = start + rows;
+        if (next > page.getHits()) {
+            return;
+        }
+        prefetcher.prefetch(Arrays.asList(base, queryParam, query, next, rows, format),
+                            prefetchExecutor -> fetchPages(base, queryParam, query, next, rows, format, trackingId + ":prefetch", deadline(null), prefetchExecutor));
+    }
+
+    /**
+     * Fetch a page from metaproxy (or the page cache) and start formatting
+     * its records
+     *
+     * @return future page
+     */
+    private CompletableFuture<Page> requestPage(String base, String queryParam, String query, int start, int rows, String format, String trackingId, Deadline deadline, ExecutorService formatExecutor) {
+        try {
+            boolean cached = sruCache != null && sruCache.isCached(base);
+            byte[] bytes = cached ? sruCache.get(base, queryParam, query, start, rows) : null;
+            if (bytes != null) {
+                long parseBegin = System.nanoTime();
+                Page page = readPage(new ByteArrayInputStream(bytes), format, base + ":", trackingId, deadline, formatExecutor);
+                page.getTimings().sruParse(System.nanoTime() - parseBegin);
+                return CompletableFuture.completedFuture(page);
+            }
+            long begin = System.nanoTime();
+            BaseGuard guard = guards == null ? null : guards.get(base);
+            CompletableFuture<Response> sruResponse = limited(() -> guard == null ?
+                                                                    requestSru(base, queryParam, query, start, rows, deadline) :
+                                                                    guard.call(() -> requestSru(base, queryParam, query, start, rows, deadline)));
+            return Futures.cancelling(sruResponse.thenApply(response -> {
+                long parseBegin = System.nanoTime();
+                if (!response.getStatusInfo().equals(Response.Status.OK)) {
+                    response.close();
+                    throw new CompletionException(new IllegalStateException("Search failed with http code: " + response.getStatusInfo()));
+                }
+                try {
+                    Page page;
+                    if (cached) {
+                        SruCache.CapturingInputStream is = sruCache.capture(response.readEntity(InputStream.class));
+                        page = readPage(is, format, base + ":", trackingId, deadline, formatExecutor);
+                        byte[] content = is.getBytes();
+                        if (content != null) {
+                            sruCache.put(base, queryParam, query, start, rows, content);
+                        }
+                    } else if (streamSruResponse) {
+                        page = streamPage(response.readEntity(InputStream.class), format, base + ":", trackingId, deadline, formatExecutor);
+                    } else {
+                        SearchRetrieveResponse sru = responseSru(response);
+                        page = buildPage(sru, format, base + ":", trackingId, deadline, formatExecutor);
+                    }
+                    page.getTimings().sruRequest(parseBegin - begin);
+                    page.getTimings().sruParse(System.nanoTime() - parseBegin);
+                    return page;
+                } catch (Exception ex) {
+                    response.close();
+                    throw new CompletionException(ex);
+                }
+            }), sruResponse);
         } catch (Exception ex) {
-            log.error("Error Processing Response: " + ex.getMessage() + " for: " + trackingId);
-            log.debug("Error Processing Response:", ex);
+            CompletableFuture<Page> future = new CompletableFuture<>();
+            future.completeExceptionally(ex);
+            return future;
+        }
+    }
+
+    /**
+     * Call metaproxy within the adaptive concurrency limit
+     *
+     * Calls rejected by a base's circuit breaker or bulkhead, and calls
+     * cancelled by the caller, are not counted.
+     *
+     * @param request the call
+     * @return future response, or a future failed with
+     *         {@link RejectedExecutionException} if no slot is free
+     */
+    private CompletableFuture<Response> limited(Supplier<CompletableFuture<Response>> request) {
+        if (sruLimiter == null) {
+            return request.get();
+        }
+        if (!sruLimiter.tryAcquire()) {
+            CompletableFuture<Response> future = new CompletableFuture<>();
+            future.completeExceptionally(new RejectedExecutionException("Too many concurrent requests to metaproxy"));
+            return future;
+        }
+        long begin = System.nanoTime();
+        CompletableFuture<Response> future;
+        try {
+            future = request.get();
+        } catch (RuntimeException ex) {
+            sruLimiter.onDropped(System.nanoTime() - begin);
+            throw ex;
+        }
+        return Futures.whenComplete(future, (response, ex) -> {
+            if (Futures.isCancellation(ex) ||
+                ex instanceof BaseUnavailableException ||
+                ex instanceof CompletionException && ex.getCause() instanceof BaseUnavailableException) {
+                sruLimiter.onIgnore();
+            } else if (ex == null && response.getStatus() < 500) {
+                sruLimiter.onSuccess(System.nanoTime() - begin);
+            } else {
+                sruLimiter.onDropped(System.nanoTime() - begin);
+            }
+        });
+    }
+
+    private Response errorResponse(Throwable ex, String trackingId) {
+        while (ex instanceof CompletionException || ex instanceof ExecutionException) {
+            if (ex.getCause() == null) {
+                break;
+            }
+            ex = ex.getCause();
+        }
+        if (ex instanceof BaseUnavailableException) {
+            log.error("Search rejected: " + ex.getMessage() + " for: " + trackingId);
+            return serviceUnavailable(ex.getMessage());
         }
+        if (ex instanceof TimeoutException) {
+            log.error("Request timed out: " + ex.getMessage() + " for: " + trackingId);
+            return gatewayTimeout("Gateway Timeout");
+        }
+        if (ex instanceof RejectedExecutionException) {
+            log.error("Request rejected: " + ex.getMessage() + " for: " + trackingId);
+            return serviceUnavailable("Service Unavailable");
+        }
+        log.error("Error Processing Response: " + ex.getMessage() + " for: " + trackingId);
+        log.debug("Error Processing Response:", ex);
         return serverError("Internal Server Error");
     }
 
-    Response buildResponse(SearchRetrieveResponse sru, String output, String idPrefix, String trackingId) throws InterruptedException, ExecutionException {
-        EssResponse essResponse = new EssResponse();
-        essResponse.hits = sru.getNumberOfRecords();
-        essResponse.records = new ArrayList<>();
-        essResponse.trackingId = trackingId;
+    Page buildPage(SearchRetrieveResponse sru, String output, String idPrefix, String trackingId, Deadline deadline, ExecutorService formatExecutor) {
         Long hits = sru.getNumberOfRecords();
         log.debug("hits = " + hits);
+        PageFormatter page = new PageFormatter(formatExecutor, formatting, formatCache, hedger, formatBatchSize, output, idPrefix, trackingId, deadline);
         Records records = sru.getRecords();
-        if (records != null) {
-            List<Record> recordList = records.getRecords();
-            List<Future<Element>> futures = new ArrayList<>(recordList.size());
-            for (Record record : recordList) {
-                Future<Element> future;
-                RecordXMLEscapingDefinition esc = record.getRecordXMLEscaping();
-                log.debug("esc = " + esc);
-                if (esc != RecordXMLEscapingDefinition.XML) {
-                    log.error("Expected xml escaped record in response got: " + record.getRecordXMLEscaping());
-                    future = executor.submit(formatting.formattingError("Internal Server Error"));
-                } else {
-                    List<Object> content = record.getRecordData().getContent();
-                    if (content.size() == 1) {
-                        Object object = content.get(0);
-                        if (object instanceof Element) {
-                            String remoteId = null;
-                            Element e = (Element) object;
-                            for (Node child = e.getFirstChild() ; child != null ; child = child.getNextSibling()) {
-                                if (child.getNodeType() == Node.ELEMENT_NODE &&
-                                    "controlfield".equals(child.getLocalName())) {
-                                    NamedNodeMap attrs = child.getAttributes();
-                                    Node tag = attrs.getNamedItem("tag");
-                                    if (tag != null &&
-                                        "001".equals(tag.getNodeValue())) {
-                                        Node id = child.getFirstChild();
-                                        if (id.getNodeType() == Node.TEXT_NODE) {
-                                            remoteId = idPrefix + id.getNodeValue();
-                                            log.debug("remoteId = " + remoteId);
-                                        }
-                                        break;
-                                    }
-                                }
-                            }
-                            if (remoteId == null) {
-                                remoteId = idPrefix + UUID.randomUUID().toString();
-                            }
-                            future = executor.submit(formatting.formattingCall(e, output, remoteId, trackingId));
-                        } else {
-                            log.error("Not of type xml: " + object.getClass().getCanonicalName() + " should not happen.");
-                            future = executor.submit(formatting.formattingError("Internal Server Error"));
-                        }
-                    } else {
-                        log.error("Expected 1 record in response, got: " + content.size());
-                        for (Object object : content) {
-                            log.debug("Types: " + object.getClass().getCanonicalName());
-                        }
-                        future = executor.submit(formatting.formattingError("Internal Server Error"));
-                    }
+        List<CompletableFuture<FormattedRecord>> futures;
+        try {
+            if (records != null) {
+                for (Record record : records.getRecords()) {
+                    page.add(record);
                 }
-                futures.add(future);
             }
-            for (Future<Element> future : futures) {
-                essResponse.records.add(future.get());
+            futures = page.finish();
+        } catch (RuntimeException ex) {
+            page.cancel();
+            throw ex;
+        }
+        return new Page(hits, futures, null, page.getTimings());
+    }
+
+    /**
+     * Read an sru response with the configured parser
+     *
+     * @param input      sru response
+     * @param output     output format
+     * @param idPrefix   prefix for remote ids
+     * @param trackingId tracking id
+     * @param deadline       deadline for formatting
+     * @param formatExecutor where to run formatting
+     * @return page
+     * @throws Exception if the sru response cannot be parsed
+     */
+    private Page readPage(InputStream input, String output, String idPrefix, String trackingId, Deadline deadline, ExecutorService formatExecutor) throws Exception {
+        if (streamSruResponse) {
+            return streamPage(input, output, idPrefix, trackingId, deadline, formatExecutor);
+        }
+        SearchRetrieveResponse sru;
+        Timer.Context timer = timerSruReadResponse.time();
+        try (InputStream is = input) {
+            sru = Marshalling.INSTANCE.unmarshal(is, SearchRetrieveResponse.class);
+        } finally {
+            timer.stop();
+        }
+        return buildPage(sru, output, idPrefix, trackingId, deadline, formatExecutor);
+    }
+
+    /**
+     * Read the sru response as a stream, formatting records as they arrive
+     *
+     * @param input      sru response
+     * @param output     output format
+     * @param idPrefix   prefix for remote ids
+     * @param trackingId tracking id
+     * @param deadline       deadline for formatting
+     * @param formatExecutor where to run formatting
+     * @return page
+     * @throws Exception if the sru response cannot be parsed
+     */
+    private Page streamPage(InputStream input, String output, String idPrefix, String trackingId, Deadline deadline, ExecutorService formatExecutor) throws Exception {
+        PageFormatter page = new PageFormatter(formatExecutor, formatting, formatCache, hedger, formatBatchSize, output, idPrefix, trackingId, deadline);
+        long hits;
+        List<CompletableFuture<FormattedRecord>> futures;
+        Timer.Context timer = timerSruReadResponse.time();
+        try (InputStream is = input) {
+            if (passthroughRecords) {
+                hits = SruStreamParser.parsePassthrough(is, page::add);
+            } else {
+                hits = SruStreamParser.parse(is, page::add);
             }
+            futures = page.finish();
+        } catch (Exception ex) {
+            page.cancel();
+            throw ex;
+        } finally {
+            timer.stop();
         }
-        return Response.ok(essResponse, MediaType.APPLICATION_XML_TYPE).build();
+        log.debug("hits = " + hits);
+        return new Page(hits, futures, null, page.getTimings());
     }
 
-    Response requestSru(String base, String queryParam, String query, Integer start, Integer stepvalue) throws Exception {
-        Invocation invocation = client
-                .target(sruTargetUrl)
-                .path(base)
-                .queryParam(queryParam, query)
-                .queryParam("startRecord", start)
-                .queryParam("maximumRecords", stepvalue)
-                .request(MediaType.APPLICATION_XML_TYPE)
-                .buildGet();
-        return timerSruRequest.time(() -> invocation.invoke());
+    /**
+     * The response for a page
+     * <p>
+     * The response is built on the response executor, a page is often done
+     * on the timeouts thread, when formatting is cancelled.
+     */
+    private CompletableFuture<Response> respond(Page page, String trackingId) {
+        if (streamEssResponse) {
+            EssResponseWriter writer = new EssResponseWriter(page, trackingId);
+            return CompletableFuture.completedFuture(Response.ok(writer, MediaType.APPLICATION_XML_TYPE).build());
+        }
+        Executor responses = responseExecutor == null ? Runnable::run : responseExecutor;
+        if (rawRecords) {
+            // Splice the serialized records, instead of parsing them for JAXB
+            return page.done()
+                    .thenApplyAsync(v -> Response.ok(new EssResponseWriter(page, trackingId), MediaType.APPLICATION_XML_TYPE).build(), responses);
+        }
+        List<CompletableFuture<FormattedRecord>> futures = page.getRecords();
+        return page.done()
+                .thenApplyAsync(v -> {
+                    EssResponse essResponse = new EssResponse();
+                    essResponse.hits = page.getHits();
+                    essResponse.bases = page.getBases();
+                    essResponse.records = new ArrayList<>(futures.size());
+                    essResponse.trackingId = trackingId;
+                    for (CompletableFuture<FormattedRecord> future : futures) {
+                        try {
+                            essResponse.records.add(future.join().toElement());
+                        } catch (CompletionException | CancellationException ex) {
+                            essResponse.records.add(Page.errorDocument(ex, trackingId));
+                        }
+                    }
+                    return Response.ok(essResponse, MediaType.APPLICATION_XML_TYPE).build();
+                }, responses);
+    }
+
+    CompletableFuture<Response> requestSru(String base, String queryParam, String query, Integer start, Integer stepvalue, Deadline deadline) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        if (deadline.isExpired()) {
+            future.completeExceptionally(new TimeoutException("Deadline passed before search in " + base));
+            return future;
+        }
+        LoadBalancer.Endpoint endpoint = sruEndpoints.choose();
+        try {
+            Invocation.Builder request = client.target(endpoint.getUrl())
+                    .path(base)
+                    .queryParam(queryParam, query)
+                    .queryParam("startRecord", start)
+                    .queryParam("maximumRecords", stepvalue)
+                    .request(MediaType.APPLICATION_XML_TYPE);
+            deadline.limit(request, client.getConfiguration());
+            Timer.Context timer = timerSruRequest.time();
+            Future<Response> call = request.async()
+                    .get(new InvocationCallback<Response>() {
+                        @Override
+                        public void completed(Response response) {
+                            long elapsed = timer.stop();
+                            endpoint.release(response.getStatus() < 500, elapsed);
+                            taggedMetrics.timer("sruRequest", "base", base, "outcome", outcome(response))
+                                    .update(elapsed, TimeUnit.NANOSECONDS);
+                            if (!future.complete(response)) {
+                                // Timed out or cancelled, nobody will read it
+                                response.close();
+                            }
+                        }
+
+                        @Override
+                        public void failed(Throwable throwable) {
+                            long elapsed = timer.stop();
+                            if (future.isCancelled() || throwable.getCause() instanceof CancellationException) {
+                                // The caller stopped waiting, nothing is known about the endpoint
+                                endpoint.abandon();
+                            } else {
+                                endpoint.release(false, elapsed);
+                            }
+                            taggedMetrics.timer("sruRequest", "base", base, "outcome", "failed")
+                                    .update(elapsed, TimeUnit.NANOSECONDS);
+                            future.completeExceptionally(throwable);
+                        }
+                    });
+            return Futures.cancelling(future, call);
+        } catch (RuntimeException ex) {
+            // The request could not be built, eg. a query that is not a valid uri template
+            endpoint.abandon();
+            future.completeExceptionally(ex);
+            return future;
+        }
     }
 
     SearchRetrieveResponse responseSru(Response response) throws Exception {
@@ -226,8 +743,30 @@ public class EssService {
                 () -> response.readEntity(SearchRetrieveResponse.class));
     }
 
+    /**
+     * Outcome of a call, for metrics
+     *
+     * @param response response or null
+     * @return "ok" or the http status
+     */
+    static String outcome(Response response) {
+        if (response == null) {
+            return "failed";
+        }
+        int status = response.getStatus();
+        return status == 200 ? "ok" : String.valueOf(status);
+    }
+
     Response serverError(String message) {
         return Response.serverError().entity(message).build();
     }
 
+    Response gatewayTimeout(String message) {
+        return Response.status(Response.Status.GATEWAY_TIMEOUT).entity(message).build();
+    }
+
+    Response serviceUnavailable(String message) {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).entity(message).build();
+    }
+
 }
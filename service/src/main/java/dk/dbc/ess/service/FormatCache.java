@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.CaffeineSpec;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import java.util.Objects;
+import javax.xml.stream.XMLStreamException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of formatted records, keyed by remote id and output format
+ * <p>
+ * Records are kept serialized, so a cached record never shares DOM nodes
+ * with a response. Size, expiry and eviction are given as a
+ * {@link CaffeineSpec}, eviction is frequency aware (W-TinyLFU).
+ * If the spec has a maximumWeight it is the number of bytes cached.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class FormatCache {
+
+    private static final Logger log = LoggerFactory.getLogger(FormatCache.class);
+    private final Cache<Key, byte[]> cache;
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter evictions;
+
+    public FormatCache(String spec, MetricRegistry metrics) {
+        this.hits = metrics.meter(metricName("hits"));
+        this.misses = metrics.meter(metricName("misses"));
+        this.evictions = metrics.meter(metricName("evictions"));
+        CaffeineSpec caffeineSpec = CaffeineSpec.parse(spec);
+        Caffeine<Key, byte[]> builder = Caffeine.from(caffeineSpec)
+                .removalListener((Key key, byte[] value, RemovalCause cause) -> {
+                    if (cause.wasEvicted()) {
+                        evictions.mark();
+                    }
+                });
+        if (spec.contains("maximumWeight")) {
+            builder = builder.weigher((Key key, byte[] value) -> value.length);
+        }
+        this.cache = builder.build();
+        metrics.gauge(metricName("size"), () -> (Gauge<Long>) cache::estimatedSize);
+    }
+
+    private String metricName(String name) {
+        return getClass().getCanonicalName() + "#" + name;
+    }
+
+    /**
+     * Look up a formatted record
+     *
+     * @param remoteId     id of the record
+     * @param outputFormat format
+     * @return the serialized record or null if not cached
+     */
+    public FormattedRecord get(String remoteId, String outputFormat) {
+        byte[] bytes = cache.getIfPresent(new Key(remoteId, outputFormat));
+        if (bytes == null) {
+            misses.mark();
+            return null;
+        }
+        hits.mark();
+        return FormattedRecord.of(bytes);
+    }
+
+    /**
+     * Cache a formatted record
+     * <p>
+     * Error documents are not cached. This reads the DOM, so it has to be
+     * called before the record is handed on to other threads.
+     *
+     * @param remoteId     id of the record
+     * @param outputFormat format
+     * @param record       formatted record
+     */
+    public void put(String remoteId, String outputFormat, FormattedRecord record) {
+        if (record.isError()) {
+            return;
+        }
+        try {
+            cache.put(new Key(remoteId, outputFormat), record.toBytes());
+        } catch (XMLStreamException ex) {
+            log.error("Cannot cache record " + remoteId + ": " + ex.getMessage());
+            log.debug("Cannot cache record:", ex);
+        }
+    }
+
+    private static final class Key {
+
+        private final String remoteId;
+        private final String outputFormat;
+
+        private Key(String remoteId, String outputFormat) {
+            this.remoteId = remoteId;
+            this.outputFormat = outputFormat;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return remoteId.equals(other.remoteId) &&
+                   outputFormat.equals(other.outputFormat);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(remoteId, outputFormat);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import org.w3c.dom.Element;
+
+/**
+ * Writes a formatRequest, where serialized records are copied into the
+ * request as bytes
+ * <p>
+ * A record is either an {@link Element} or a byte[] fragment, that declares
+ * the namespaces it uses, see {@link SruRecord#getData()}.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+class FormatRequestWriter implements StreamingOutput {
+
+    private static final XMLOutputFactory XOF = newXMLOutputFactory();
+
+    private static XMLOutputFactory newXMLOutputFactory() {
+        synchronized (XMLOutputFactory.class) {
+            XMLOutputFactory factory = XMLOutputFactory.newInstance();
+            factory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+            return factory;
+        }
+    }
+
+    private final List<?> ins;
+    private final List<String> ids;
+    private final String outputFormat;
+    private final String trackingId;
+
+    FormatRequestWriter(List<?> ins, List<String> ids, String outputFormat, String trackingId) {
+        this.ins = ins;
+        this.ids = ids;
+        this.outputFormat = outputFormat;
+        this.trackingId = trackingId;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        try {
+            XMLStreamWriter writer = XOF.createXMLStreamWriter(output, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeStartElement("of", "formatRequest", Formatting.OPEN_FORMAT_NS);
+            for (int i = 0 ; i < ins.size() ; i++) {
+                writer.writeStartElement("of", "originalData", Formatting.OPEN_FORMAT_NS);
+                writer.writeStartElement("of", "identifier", Formatting.OPEN_FORMAT_NS);
+                writer.writeCharacters(ids.get(i));
+                writer.writeEndElement();
+                Object in = ins.get(i);
+                if (in instanceof byte[]) {
+                    writer.writeCharacters("");
+                    writer.flush();
+                    output.write((byte[]) in);
+                } else {
+                    EssResponseWriter.writeNode(writer, (Element) in);
+                }
+                writer.writeEndElement();
+            }
+            writer.writeStartElement("of", "outputFormat", Formatting.OPEN_FORMAT_NS);
+            writer.writeCharacters(outputFormat);
+            writer.writeEndElement();
+            if (trackingId != null) {
+                writer.writeStartElement("of", "trackingId", Formatting.OPEN_FORMAT_NS);
+                writer.writeCharacters(trackingId);
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            write(bos);
+            return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            return ex.toString();
+        }
+    }
+}
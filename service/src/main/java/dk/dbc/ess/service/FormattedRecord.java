@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import dk.dbc.ess.service.response.EssResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * A formatted record, either as a DOM or as serialized bytes
+ * <p>
+ * Serialized records are UTF-8 fragments without an XML declaration, written
+ * for the records element of the response, that is with {@link EssResponse#NS}
+ * as the default namespace. They are spliced into the response as they are.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public abstract class FormattedRecord {
+
+    private static final XMLOutputFactory XOF = newXMLOutputFactory();
+
+    private static XMLOutputFactory newXMLOutputFactory() {
+        synchronized (XMLOutputFactory.class) {
+            XMLOutputFactory factory = XMLOutputFactory.newInstance();
+            factory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+            return factory;
+        }
+    }
+
+    private static final DOMImplementation DOM = XmlTools.newDocumentBuilder().getDOMImplementation();
+
+    private static final byte[] FRAGMENT_START = ( "<records xmlns=\"" + EssResponse.NS + "\">" ).getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FRAGMENT_END = "</records>".getBytes(StandardCharsets.UTF_8);
+
+    public static FormattedRecord of(Element element) {
+        return new DomRecord(element);
+    }
+
+    /**
+     * A record from a serialized fragment
+     *
+     * @param fragment bytes as produced by {@link #toBytes()}
+     * @return record
+     */
+    public static FormattedRecord of(byte[] fragment) {
+        return new RawRecord(fragment);
+    }
+
+    /**
+     * Copy the element the reader is positioned at into a serialized record
+     * <p>
+     * The reader is left at the end of the element. Reading through the
+     * element is what checks that the record is well formed.
+     *
+     * @param reader reader at a start element
+     * @return record
+     * @throws XMLStreamException if the element is not well formed
+     */
+    public static FormattedRecord read(XMLStreamReader reader) throws XMLStreamException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        XMLStreamWriter writer = fragmentWriter(bos);
+        XmlTools.copyElement(reader, writer);
+        writer.close();
+        return new RawRecord(bos.toByteArray());
+    }
+
+    private static XMLStreamWriter fragmentWriter(OutputStream os) throws XMLStreamException {
+        XMLStreamWriter writer = XOF.createXMLStreamWriter(os, "UTF-8");
+        writer.setDefaultNamespace(EssResponse.NS);
+        return writer;
+    }
+
+    /**
+     * The record as a DOM, that the caller owns
+     *
+     * @return element
+     */
+    public abstract Element toElement();
+
+    /**
+     * The record as a serialized fragment
+     *
+     * @return bytes
+     * @throws XMLStreamException if the record cannot be serialized
+     */
+    public abstract byte[] toBytes() throws XMLStreamException;
+
+    /**
+     * A copy that can be used by another thread
+     *
+     * @return record
+     */
+    public abstract FormattedRecord copy();
+
+    /**
+     * Is this an error document
+     *
+     * @return if it is
+     */
+    public abstract boolean isError();
+
+    /**
+     * Write the record as a child of the records element of a response
+     *
+     * @param writer writer of the response
+     * @param os     stream the writer writes to
+     * @throws XMLStreamException if the writer fails
+     * @throws IOException        if the stream fails
+     */
+    abstract void write(XMLStreamWriter writer, OutputStream os) throws XMLStreamException, IOException;
+
+    private static final class DomRecord extends FormattedRecord {
+
+        private final Element element;
+
+        private DomRecord(Element element) {
+            this.element = element;
+        }
+
+        @Override
+        public Element toElement() {
+            return element;
+        }
+
+        @Override
+        public synchronized byte[] toBytes() throws XMLStreamException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            XMLStreamWriter writer = fragmentWriter(bos);
+            EssResponseWriter.writeNode(writer, element);
+            writer.close();
+            return bos.toByteArray();
+        }
+
+        @Override
+        public synchronized FormattedRecord copy() {
+            Document document = DOM.createDocument(null, null, null);
+            Node copy = document.importNode(element, true);
+            document.appendChild(copy);
+            return new DomRecord((Element) copy);
+        }
+
+        @Override
+        public boolean isError() {
+            return EssResponse.NS.equals(element.getNamespaceURI()) &&
+                   "error".equals(element.getLocalName());
+        }
+
+        @Override
+        void write(XMLStreamWriter writer, OutputStream os) throws XMLStreamException {
+            EssResponseWriter.writeNode(writer, element);
+        }
+    }
+
+    private static final class RawRecord extends FormattedRecord {
+
+        private final byte[] fragment;
+
+        private RawRecord(byte[] fragment) {
+            this.fragment = fragment;
+        }
+
+        /**
+         * Parse the fragment inside a records element, so an element in the
+         * default namespace gets it
+         */
+        @Override
+        public Element toElement() {
+            InputStream is = new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                    new ByteArrayInputStream(FRAGMENT_START),
+                    new ByteArrayInputStream(fragment),
+                    new ByteArrayInputStream(FRAGMENT_END))));
+            try {
+                Element records = XmlTools.newDocumentBuilder().parse(is).getDocumentElement();
+                for (Node child = records.getFirstChild() ; child != null ; child = child.getNextSibling()) {
+                    if (child.getNodeType() == Node.ELEMENT_NODE) {
+                        records.getOwnerDocument().replaceChild(records.removeChild(child), records);
+                        return (Element) child;
+                    }
+                }
+                throw new IllegalStateException("No element in serialized record");
+            } catch (SAXException | IOException ex) {
+                throw new IllegalStateException("Cannot parse serialized record", ex);
+            }
+        }
+
+        @Override
+        public byte[] toBytes() {
+            return fragment;
+        }
+
+        @Override
+        public FormattedRecord copy() {
+            return this;
+        }
+
+        @Override
+        public boolean isError() {
+            return false;
+        }
+
+        /**
+         * Close the pending start tag of the writer, then copy the bytes
+         * straight to the stream
+         */
+        @Override
+        void write(XMLStreamWriter writer, OutputStream os) throws XMLStreamException, IOException {
+            writer.writeCharacters("");
+            writer.flush();
+            os.write(fragment);
+        }
+    }
+}
@@ -26,6 +26,7 @@ import dk.dbc.openformat.FormatResponse;
 import dk.dbc.openformat.OriginalData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.DOMImplementation;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
@@ -37,14 +38,21 @@ import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.Invocation;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
-import java.util.LinkedList;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -58,96 +66,491 @@ public class Formatting {
 
     public static final ErrorDocument ERROR_DOCUMENT = new ErrorDocument();
 
-    private final String openFormatUrl;
+    static final String DEADLINE_EXCEEDED = "Formatting error - deadline exceeded";
+
+    static final String OPEN_FORMAT_NS = "http://oss.dbc.dk/ns/openformat";
+
+    private static final XMLInputFactory XIF = newXMLInputFactory();
+
+    private static XMLInputFactory newXMLInputFactory() {
+        synchronized (XMLInputFactory.class) {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            return factory;
+        }
+    }
+
+    private final LoadBalancer endpoints;
     private final Client client;
     private final Timer timerFormatRequest;
+    private final Timer timerFormatBatchRequest;
+    private final AdaptiveLimiter limiter;
+    private final AdaptiveLimiter batchLimiter;
+    private final TaggedMetrics taggedMetrics;
+    private final boolean rawRecords;
 
     public Formatting(Settings settings, MetricRegistry metrics, Client client) {
-        openFormatUrl = settings.getOpenFormatUrl();
+        endpoints = new LoadBalancer("openformat", settings.getOpenFormatUrls(), settings.getLoadBalancer(), metrics);
         this.client = client;
         this.timerFormatRequest = mkTimer(metrics, "formatRequest");
+        this.timerFormatBatchRequest = mkTimer(metrics, "formatBatchRequest");
+        this.limiter = new AdaptiveLimiter("openformat", settings.getFormatLimiter(), metrics);
+        this.batchLimiter = new AdaptiveLimiter("openformatBatch", settings.getFormatLimiter(), metrics);
+        this.taggedMetrics = new TaggedMetrics(metrics, Formatting.class);
+        this.rawRecords = settings.getRawRecords();
+    }
 
+    Timer getFormatRequestTimer() {
+        return timerFormatRequest;
     }
 
     private Timer mkTimer(MetricRegistry metrics, String name) {
-        return metrics.timer(getClass().getCanonicalName() + "#" + name);
+        return metrics.timer(getClass().getCanonicalName() + "#" + name, () -> new Timer(new HdrReservoir()));
     }
 
-    private Element format(Element in, String outputFormat, String id, String trackingId) {
+    private FormattedRecord format(Object in, String outputFormat, String id, String trackingId, Deadline deadline, Runnable started) {
+        if (deadline.isExpired()) {
+            log.error("Deadline passed before formatting for: " + trackingId);
+            return error(DEADLINE_EXCEEDED);
+        }
         try {
-            FormatRequest request = new FormatRequest();
-
-            request.setOutputFormat(outputFormat);
-            request.setTrackingId(trackingId);
-            OriginalData originalData = new OriginalData();
-            originalData.setIdentifier(id);
-            originalData.setAny(in);
-            request.getOriginalDatas().add(originalData);
-            Invocation invocation = client.target(openFormatUrl)
-                    .request(MediaType.APPLICATION_XML_TYPE)
-                    .buildPost(Entity.entity(request, MediaType.APPLICATION_XML_TYPE));
-
+            Object request = formatRequest(Collections.singletonList(in), Collections.singletonList(id), outputFormat, trackingId);
             if (log.isTraceEnabled()) {
-                StringWriter sw = new StringWriter();
                 try {
-                    JAXBContext carContext = JAXBContext.newInstance(FormatRequest.class);
-                    Marshaller carMarshaller = carContext.createMarshaller();
-                    carMarshaller.marshal(request, sw);
-                    log.trace("request = {}", sw);
-                } catch (JAXBException e) {
+                    log.trace("request = {}", request instanceof FormatRequest ? Marshalling.INSTANCE.toString(request) : request);
+                } catch (IOException e) {
                     log.trace("Cannot convert using JAXB", e);
                 }
             }
 
-            Response response = timerFormatRequest.time(() -> invocation.invoke());
-            Response.StatusType status = response.getStatusInfo();
+            Response response = invoke(request, outputFormat, deadline, limiter, timerFormatRequest, "formatRequest", started);
+            try {
+                Response.StatusType status = response.getStatusInfo();
 
-            log.debug("status = {}", status);
+                log.debug("status = {}", status);
 
-            if (status.equals(Response.Status.OK)) {
-                FormatResponse formatted = response.readEntity(FormatResponse.class);
-                if (log.isTraceEnabled()) {
-                    StringWriter sw = new StringWriter();
-                    try {
-                        JAXBContext carContext = JAXBContext.newInstance(FormatResponse.class);
-                        Marshaller carMarshaller = carContext.createMarshaller();
-                        carMarshaller.marshal(formatted, sw);
-                        log.trace("response = {}", sw);
-                    } catch (JAXBException e) {
-                        log.trace("Cannot convert using JAXB", e);
+                if (status.equals(Response.Status.OK)) {
+                    if (rawRecords) {
+                        try (InputStream is = response.readEntity(InputStream.class)) {
+                            return splitRawResponse(is, 1, trackingId).get(0);
+                        }
                     }
+                    FormatResponse formatted = response.readEntity(FormatResponse.class);
+                    if (log.isTraceEnabled()) {
+                        try {
+                            log.trace("response = {}", Marshalling.INSTANCE.toString(formatted));
+                        } catch (IOException e) {
+                            log.trace("Cannot convert using JAXB", e);
+                        }
+                    }
+                    String error = formatted.getError();
+                    if (error != null) {
+                        log.error("Openformat responded with: " + error + " for: " + trackingId);
+                        return error("Formatting error - content error");
+                    }
+                    return FormattedRecord.of(formatted.getAny());
+                } else {
+                    log.error("OpenFormat responded http status: " + status + " for: " + trackingId);
+                    return error("Formatting error - server error");
                 }
-                String error = formatted.getError();
-                if (error != null) {
-                    log.error("Openformat responded with: " + error + " for: " + trackingId);
-                    return error("Formatting error - content error");
-                }
-                return formatted.getAny();
-            } else {
-                log.error("OpenFormat responded http status: " + status + " for: " + trackingId);
-                return error("Formatting error - server error");
+            } finally {
+                response.close();
             }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            log.error("Formatting cancelled while waiting for OpenFormat for: " + trackingId);
+            return error(DEADLINE_EXCEEDED);
+        } catch (RejectedExecutionException ex) {
+            log.error("Formatting rejected: " + ex.getMessage() + " for: " + trackingId);
+            return error("Formatting error - service overloaded");
         } catch (Exception ex) {
             log.error("Error processing record: " + ex.getClass().getName() + " " + ex.getMessage() + " for: " + trackingId);
             log.debug("Error processing record:", ex);
         }
-        return ERROR_DOCUMENT.getDocument("Internal Server Error");
+        return error("Internal Server Error");
     }
 
-    private Element error(String message) {
-        return ERROR_DOCUMENT.getDocument(message);
+    private List<FormattedRecord> format(List<Object> ins, List<String> ids, String outputFormat, String trackingId, Deadline deadline) {
+        if (ins.size() == 1) {
+            return Collections.singletonList(format(ins.get(0), outputFormat, ids.get(0), trackingId, deadline, () -> {
+            }));
+        }
+        if (deadline.isExpired()) {
+            log.error("Deadline passed before formatting for: " + trackingId);
+            return errors(ins.size(), DEADLINE_EXCEEDED);
+        }
+        try {
+            Object request = formatRequest(ins, ids, outputFormat, trackingId);
+            Response response = invoke(request, outputFormat, deadline, batchLimiter, timerFormatBatchRequest, "formatBatchRequest", () -> {
+            });
+            try {
+                Response.StatusType status = response.getStatusInfo();
+
+                log.debug("status = {}", status);
+
+                if (status.equals(Response.Status.OK)) {
+                    if (rawRecords) {
+                        try (InputStream is = response.readEntity(InputStream.class)) {
+                            return splitRawResponse(is, ins.size(), trackingId);
+                        }
+                    }
+                    Document formatted;
+                    try (InputStream is = response.readEntity(InputStream.class)) {
+                        formatted = XmlTools.newDocumentBuilder().parse(is);
+                    }
+                    return splitBatchResponse(formatted.getDocumentElement(), ins.size(), trackingId);
+                } else {
+                    log.error("OpenFormat responded http status: " + status + " for: " + trackingId);
+                    return errors(ins.size(), "Formatting error - server error");
+                }
+            } finally {
+                response.close();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            log.error("Formatting cancelled while waiting for OpenFormat for: " + trackingId);
+            return errors(ins.size(), DEADLINE_EXCEEDED);
+        } catch (RejectedExecutionException ex) {
+            log.error("Formatting rejected: " + ex.getMessage() + " for: " + trackingId);
+            return errors(ins.size(), "Formatting error - service overloaded");
+        } catch (Exception ex) {
+            log.error("Error processing records: " + ex.getClass().getName() + " " + ex.getMessage() + " for: " + trackingId);
+            log.debug("Error processing records:", ex);
+        }
+        return errors(ins.size(), "Internal Server Error");
     }
 
-    public Callable<Element> formattingCall(Element in, String outputFormat, String id, String trackingId) {
-        return () -> format(in, outputFormat, id, trackingId);
+    /**
+     * The body of a request to OpenFormat
+     * <p>
+     * When any of the records is serialized, the body is written directly,
+     * otherwise it is a {@link FormatRequest} for JAXB.
+     *
+     * @param ins          records, as {@link Element} or byte[]
+     * @param ids          identifiers of the records
+     * @param outputFormat format
+     * @param trackingId   tracking id
+     * @return entity
+     */
+    private Object formatRequest(List<?> ins, List<String> ids, String outputFormat, String trackingId) {
+        for (Object in : ins) {
+            if (in instanceof byte[]) {
+                return new FormatRequestWriter(ins, ids, outputFormat, trackingId);
+            }
+        }
+        FormatRequest request = new FormatRequest();
+
+        request.setOutputFormat(outputFormat);
+        request.setTrackingId(trackingId);
+        for (int i = 0 ; i < ins.size() ; i++) {
+            OriginalData originalData = new OriginalData();
+            originalData.setIdentifier(ids.get(i));
+            originalData.setAny((Element) ins.get(i));
+            request.getOriginalDatas().add(originalData);
+        }
+        return request;
+    }
+
+    /**
+     * Build a request to OpenFormat, that times out at the deadline
+     *
+     * @param url      OpenFormat endpoint
+     * @param request  request body
+     * @param deadline deadline
+     * @return invocation
+     */
+    private Invocation invocation(String url, Object request, Deadline deadline) {
+        Invocation.Builder builder = client.target(url)
+                .request(MediaType.APPLICATION_XML_TYPE);
+        deadline.limit(builder, client.getConfiguration());
+        return builder.buildPost(Entity.entity(request, MediaType.APPLICATION_XML_TYPE));
+    }
+
+    /**
+     * Call OpenFormat within the adaptive concurrency limit, on the endpoint
+     * chosen by the load balancer
+     * <p>
+     * Single and batch requests have their own limiters, as their round trip
+     * times differ by the batch size. A call that is cancelled (interrupted,
+     * or failing after the deadline) counts neither for the limiter nor for
+     * the endpoint.
+     *
+     * @param request      request body
+     * @param outputFormat format, for metrics
+     * @param deadline     deadline
+     * @param limiter      concurrency limit for this kind of request
+     * @param timer        timer for the request
+     * @param name         name of the timer tagged with format and outcome
+     * @param started      run when a slot has been acquired
+     * @return response
+     * @throws Exception if the call failed, or
+     *                   {@link RejectedExecutionException} if no slot was
+     *                   free in time
+     */
+    private Response invoke(Object request, String outputFormat, Deadline deadline, AdaptiveLimiter limiter, Timer timer, String name, Runnable started) throws Exception {
+        if (!limiter.acquire(deadline)) {
+            throw new RejectedExecutionException("Too many concurrent requests to OpenFormat");
+        }
+        LoadBalancer.Endpoint endpoint = null;
+        long start = System.nanoTime();
+        boolean success = false;
+        boolean cancelled = false;
+        Response response = null;
+        try {
+            started.run();
+            endpoint = endpoints.choose();
+            Invocation invocation = invocation(endpoint.getUrl(), request, deadline);
+            response = timer.time(() -> invocation.invoke());
+            success = response.getStatus() < 500;
+            return response;
+        } catch (Exception ex) {
+            // Cancelled at the deadline or as a losing hedge, not a failure of OpenFormat
+            cancelled = Thread.currentThread().isInterrupted() || isInterrupt(ex) || deadline.isExpired();
+            throw ex;
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            taggedMetrics.timer(name, "format", outputFormat, "outcome", cancelled ? "cancelled" : EssService.outcome(response))
+                    .update(elapsed, TimeUnit.NANOSECONDS);
+            if (cancelled) {
+                if (endpoint != null) {
+                    endpoint.abandon();
+                }
+                limiter.onIgnore();
+            } else {
+                if (endpoint != null) {
+                    endpoint.release(success, elapsed);
+                }
+                if (success) {
+                    limiter.onSuccess(elapsed);
+                } else {
+                    limiter.onDropped(elapsed);
+                }
+            }
+        }
+    }
+
+    private static boolean isInterrupt(Throwable ex) {
+        for (Throwable cause = ex ; cause != null ; cause = cause.getCause()) {
+            if (cause instanceof InterruptedException ||
+                cause instanceof InterruptedIOException && !( cause instanceof SocketTimeoutException )) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    public Callable<Element> formattingError(String message) {
+    /**
+     * Map the children of a batched formatResponse back to the records in the
+     * request
+     * <p>
+     * OpenFormat answers with one element per originalData, in request order.
+     * A single of:error means the entire request failed.
+     *
+     * @param root       formatResponse element
+     * @param count      number of records in the request
+     * @param trackingId tracking id for logging
+     * @return list of formatted records or error documents
+     */
+    List<FormattedRecord> splitBatchResponse(Element root, int count, String trackingId) {
+        List<Element> children = new ArrayList<>(count);
+        for (Node child = root.getFirstChild() ; child != null ; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                children.add((Element) child);
+            }
+        }
+        if (children.size() == 1 && count != 1 && isOpenFormatError(children.get(0))) {
+            log.error("Openformat responded with: " + children.get(0).getTextContent().trim() + " for: " + trackingId);
+            return errors(count, "Formatting error - content error");
+        }
+        if (children.size() != count) {
+            log.error("Openformat responded with " + children.size() + " records, expected " + count + " for: " + trackingId);
+            return errors(count, "Formatting error - content error");
+        }
+        List<FormattedRecord> formatted = new ArrayList<>(count);
+        for (Element child : children) {
+            if (isOpenFormatError(child)) {
+                log.error("Openformat responded with: " + child.getTextContent().trim() + " for: " + trackingId);
+                formatted.add(error("Formatting error - content error"));
+            } else {
+                formatted.add(FormattedRecord.of(child));
+            }
+        }
+        return formatted;
+    }
+
+    /**
+     * Split a formatResponse into serialized records, without building a DOM
+     * <p>
+     * The children are copied as they are read, which also checks that they
+     * are well formed. The mapping to the records in the request is the same
+     * as in {@link #splitBatchResponse(Element, int, String)}.
+     *
+     * @param is         formatResponse document
+     * @param count      number of records in the request
+     * @param trackingId tracking id for logging
+     * @return list of formatted records or error documents
+     * @throws XMLStreamException if the response is not well formed
+     */
+    List<FormattedRecord> splitRawResponse(InputStream is, int count, String trackingId) throws XMLStreamException {
+        XMLStreamReader reader = XIF.createXMLStreamReader(is);
+        try {
+            reader.nextTag();
+            List<FormattedRecord> formatted = new ArrayList<>(count);
+            int errors = 0;
+            while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+                if (reader.isStartElement()) {
+                    if (OPEN_FORMAT_NS.equals(reader.getNamespaceURI()) &&
+                        "error".equals(reader.getLocalName())) {
+                        log.error("Openformat responded with: " + reader.getElementText().trim() + " for: " + trackingId);
+                        formatted.add(error("Formatting error - content error"));
+                        errors++;
+                    } else {
+                        formatted.add(FormattedRecord.read(reader));
+                    }
+                }
+            }
+            while (reader.hasNext()) {
+                reader.next();
+            }
+            if (formatted.size() != count) {
+                if (formatted.size() != 1 || errors != 1) {
+                    log.error("Openformat responded with " + formatted.size() + " records, expected " + count + " for: " + trackingId);
+                }
+                return errors(count, "Formatting error - content error");
+            }
+            return formatted;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static boolean isOpenFormatError(Element element) {
+        return OPEN_FORMAT_NS.equals(element.getNamespaceURI()) &&
+               "error".equals(element.getLocalName());
+    }
+
+    private List<FormattedRecord> errors(int count, String message) {
+        List<FormattedRecord> errors = new ArrayList<>(count);
+        for (int i = 0 ; i < count ; i++) {
+            errors.add(error(message));
+        }
+        return errors;
+    }
+
+    private FormattedRecord error(String message) {
+        return FormattedRecord.of(ERROR_DOCUMENT.getDocument(message));
+    }
+
+    /**
+     * Format a record
+     *
+     * @param in           record, as an {@link Element} or as a serialized
+     *                     fragment from {@link SruRecord#getData()}
+     * @param outputFormat format
+     * @param id           identifier of the record
+     * @param trackingId   tracking id
+     * @param deadline     deadline for formatting
+     * @return task that formats the record
+     */
+    public Callable<FormattedRecord> formattingCall(Object in, String outputFormat, String id, String trackingId, Deadline deadline) {
+        return formattingCall(in, outputFormat, id, trackingId, deadline, () -> {
+        });
+    }
+
+    /**
+     * Create a task that formats a single record, and tells when the call to
+     * OpenFormat starts
+     * <p>
+     * The callback is run once a slot in the concurrency limit has been
+     * acquired, so time spent waiting for the limiter isn't counted as
+     * latency when hedging. It isn't run if the call is never made.
+     *
+     * @param in           record, as an {@link Element} or as a serialized
+     *                     fragment from {@link SruRecord#getData()}
+     * @param outputFormat format
+     * @param id           identifier of the record
+     * @param trackingId   tracking id
+     * @param deadline     deadline for formatting
+     * @param started      run when the call to OpenFormat starts
+     * @return task that formats the record
+     */
+    public Callable<FormattedRecord> formattingCall(Object in, String outputFormat, String id, String trackingId, Deadline deadline, Runnable started) {
+        return () -> format(in, outputFormat, id, trackingId, deadline, started);
+    }
+
+    public Callable<FormattedRecord> formattingError(String message) {
         return new FormattingError(message);
 
     }
 
-    public class FormattingError implements Callable<Element> {
+    public Batch formattingBatch(String outputFormat, String trackingId, Deadline deadline) {
+        return new Batch(outputFormat, trackingId, deadline);
+    }
+
+    /**
+     * A number of records, that are sent to OpenFormat in one request
+     * <p>
+     * Each added record gets a future, which is completed when the batch
+     * has been called.
+     */
+    public class Batch implements Callable<Void> {
+
+        private final String outputFormat;
+        private final String trackingId;
+        private final Deadline deadline;
+        private final List<Object> ins;
+        private final List<String> ids;
+        private final List<CompletableFuture<FormattedRecord>> results;
+
+        public Batch(String outputFormat, String trackingId, Deadline deadline) {
+            this.outputFormat = outputFormat;
+            this.trackingId = trackingId;
+            this.deadline = deadline;
+            this.ins = new ArrayList<>();
+            this.ids = new ArrayList<>();
+            this.results = new ArrayList<>();
+        }
+
+        /**
+         * Add a record to the batch
+         *
+         * @param in record, see
+         *           {@link #formattingCall(Object, String, String, String, Deadline)}
+         * @param id identifier of the record
+         * @return future formatted record
+         */
+        public CompletableFuture<FormattedRecord> add(Object in, String id) {
+            CompletableFuture<FormattedRecord> result = new CompletableFuture<>();
+            ins.add(in);
+            ids.add(id);
+            results.add(result);
+            return result;
+        }
+
+        public int size() {
+            return ins.size();
+        }
+
+        /**
+         * @return future formatted records, in the order they were added
+         */
+        public List<CompletableFuture<FormattedRecord>> getResults() {
+            return results;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            List<FormattedRecord> formatted = format(ins, ids, outputFormat, trackingId, deadline);
+            for (int i = 0 ; i < results.size() ; i++) {
+                results.get(i).complete(formatted.get(i));
+            }
+            return null;
+        }
+    }
+
+    public class FormattingError implements Callable<FormattedRecord> {
 
         private final String message;
 
@@ -156,63 +559,113 @@ public class Formatting {
         }
 
         @Override
-        public Element call() throws Exception {
+        public FormattedRecord call() throws Exception {
             return error(message);
         }
     }
 
+    /**
+     * Error elements built from the template error_document.xml
+     * <p>
+     * The template is parsed once into an immutable tree, and every error
+     * gets a new DOM built from that, so no state is shared between threads
+     * and no locking is needed.
+     */
     public static class ErrorDocument {
 
-        private Document doc;
-        private Element node;
-        private int[] pos;
+        private static final DOMImplementation DOM = XmlTools.newDocumentBuilder().getDOMImplementation();
+
+        private final Template root;
 
         public ErrorDocument() {
             try (InputStream is = Formatting.class.getResourceAsStream("/error_document.xml")) {
-                this.doc = XmlTools.newDocumentBuilder().parse(is);
-                this.node = doc.getDocumentElement();
-                LinkedList<Integer> list = findMessagePath(node);
-                if (list == null) {
+                Document doc = XmlTools.newDocumentBuilder().parse(is);
+                this.root = new Template(doc.getDocumentElement());
+                if (!root.hasMessage()) {
                     throw new RuntimeException("Unable to find message node");
                 }
-                this.pos = list.stream().mapToInt(i -> i).toArray();
             } catch (SAXException | IOException ex) {
                 throw new RuntimeException("Error creating error document", ex);
             }
         }
 
-        private static LinkedList<Integer> findMessagePath(Node n) {
-            int pos = 0;
-            for (Node child = n.getFirstChild() ; child != null ; child = child.getNextSibling(), pos++) {
+        public Element getDocument(String content) {
+            Document document = DOM.createDocument(null, null, null);
+            Element element = root.build(document, content);
+            document.appendChild(element);
+            return element;
+        }
+    }
+
+    /**
+     * Immutable copy of an element of the error template
+     * <p>
+     * The element with the attribute id="message" is where the message text
+     * goes, the attribute itself is left out.
+     */
+    private static class Template {
+
+        private final String namespaceURI;
+        private final String qualifiedName;
+        private final String[][] attributes;
+        private final Object[] children;
+        private final boolean message;
+
+        private Template(Element element) {
+            this.namespaceURI = element.getNamespaceURI();
+            this.qualifiedName = element.getTagName();
+            NamedNodeMap attrs = element.getAttributes();
+            List<String[]> list = new ArrayList<>();
+            boolean isMessage = false;
+            for (int i = 0 ; i < attrs.getLength() ; i++) {
+                Node attr = attrs.item(i);
+                if (attr.getNamespaceURI() == null && "id".equals(attr.getNodeName()) && "message".equals(attr.getNodeValue())) {
+                    isMessage = true;
+                } else {
+                    list.add(new String[] {attr.getNamespaceURI(), attr.getNodeName(), attr.getNodeValue()});
+                }
+            }
+            this.attributes = list.toArray(new String[list.size()][]);
+            this.message = isMessage;
+            List<Object> nodes = new ArrayList<>();
+            for (Node child = element.getFirstChild() ; child != null ; child = child.getNextSibling()) {
                 if (child.getNodeType() == Node.ELEMENT_NODE) {
-                    NamedNodeMap attrs = child.getAttributes();
-                    if (attrs != null) {
-                        Node id = attrs.getNamedItem("id");
-                        if (id != null && id.getNodeValue().equals("message")) {
-                            attrs.removeNamedItem("id");
-                            LinkedList<Integer> list = new LinkedList<>();
-                            list.addFirst(pos);
-                            return list;
-                        }
-                    }
-                    LinkedList<Integer> list = findMessagePath(child);
-                    if (list != null) {
-                        list.addFirst(pos);
-                        return list;
-                    }
+                    nodes.add(new Template((Element) child));
+                } else if (child.getNodeType() == Node.TEXT_NODE) {
+                    nodes.add(child.getNodeValue());
                 }
             }
-            return null;
+            this.children = nodes.toArray();
         }
 
-        public synchronized Element getDocument(String content) {
-            Node copy = node.cloneNode(true);
-            Node msg = copy;
-            for (int index : pos) {
-                msg = msg.getChildNodes().item(index);
+        private boolean hasMessage() {
+            if (message) {
+                return true;
+            }
+            for (Object child : children) {
+                if (child instanceof Template && ( (Template) child ).hasMessage()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Element build(Document document, String content) {
+            Element element = document.createElementNS(namespaceURI, qualifiedName);
+            for (String[] attribute : attributes) {
+                element.setAttributeNS(attribute[0], attribute[1], attribute[2]);
+            }
+            for (Object child : children) {
+                if (child instanceof Template) {
+                    element.appendChild(( (Template) child ).build(document, content));
+                } else {
+                    element.appendChild(document.createTextNode((String) child));
+                }
+            }
+            if (message) {
+                element.appendChild(document.createTextNode(content));
             }
-            msg.appendChild(doc.createTextNode(content));
-            return (Element) copy;
+            return element;
         }
     }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+/**
+ * Cancellation of chains of futures
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+final class Futures {
+
+    private Futures() {
+    }
+
+    /**
+     * Cancel the future a dependent future was made from, when the dependent
+     * is cancelled
+     * <p>
+     * Cancelling a dependent stage of a {@link CompletableFuture} does not
+     * reach the stage it depends on, so the work behind it would keep
+     * running for nobody.
+     *
+     * @param <T>       result type
+     * @param dependent future derived from source
+     * @param source    the work to stop
+     * @return dependent
+     */
+    static <T> CompletableFuture<T> cancelling(CompletableFuture<T> dependent, Future<?> source) {
+        dependent.whenComplete((value, ex) -> {
+            if (dependent.isCancelled()) {
+                source.cancel(true);
+            }
+        });
+        return dependent;
+    }
+
+    /**
+     * Run an action when a future completes, also when the returned future
+     * is cancelled
+     * <p>
+     * The action of {@link CompletableFuture#whenComplete} is skipped when
+     * its future has been cancelled, so it cannot release resources held by
+     * the call. Here the action runs when source completes (cancelled too, as
+     * cancelling the returned future cancels source), before the returned
+     * future completes.
+     *
+     * @param <T>    result type
+     * @param source the call
+     * @param action run with the result or the failure of source
+     * @return future completing as source, after the action
+     */
+    static <T> CompletableFuture<T> whenComplete(CompletableFuture<T> source, BiConsumer<? super T, ? super Throwable> action) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        source.whenComplete((value, ex) -> {
+            try {
+                action.accept(value, ex);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(ex == null ? e : ex);
+                return;
+            }
+            if (ex != null) {
+                result.completeExceptionally(ex);
+            } else {
+                result.complete(value);
+            }
+        });
+        return cancelling(result, source);
+    }
+
+    /**
+     * If a future failed because it was cancelled, by a caller that stopped
+     * waiting
+     * <p>
+     * Such a failure says nothing about the health of what was called.
+     *
+     * @param ex the failure, possibly wrapped
+     * @return if it is a cancellation
+     */
+    static boolean isCancellation(Throwable ex) {
+        while (ex instanceof CompletionException && ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+        return ex instanceof CancellationException;
+    }
+}
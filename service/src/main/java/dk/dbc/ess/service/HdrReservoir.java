@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Reservoir that records every value in an HdrHistogram, instead of keeping
+ * a sample
+ * <p>
+ * Values are recorded (lock free) with 3 significant digits, and a snapshot
+ * covers the last minute in chunks of 10 seconds. Values are moved into the
+ * chunks when a snapshot is taken, so with snapshots far apart the window is
+ * approximate.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class HdrReservoir implements Reservoir {
+
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final int CHUNKS = 6;
+    private static final long CHUNK_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final Recorder recorder;
+    private final Histogram[] chunks;
+    private final LongSupplier clock;
+    private Histogram interval;
+    private int current;
+    private long currentStart;
+
+    public HdrReservoir() {
+        this(System::nanoTime);
+    }
+
+    HdrReservoir(LongSupplier clock) {
+        this.recorder = new Recorder(SIGNIFICANT_DIGITS);
+        this.chunks = new Histogram[CHUNKS];
+        for (int i = 0 ; i < CHUNKS ; i++) {
+            chunks[i] = new Histogram(SIGNIFICANT_DIGITS);
+        }
+        this.clock = clock;
+        this.currentStart = clock.getAsLong();
+    }
+
+    @Override
+    public int size() {
+        return getSnapshot().size();
+    }
+
+    @Override
+    public void update(long value) {
+        recorder.recordValue(Math.max(0, value));
+    }
+
+    @Override
+    public synchronized Snapshot getSnapshot() {
+        long now = clock.getAsLong();
+        if (now - currentStart >= CHUNK_NANOS * CHUNKS) {
+            for (Histogram chunk : chunks) {
+                chunk.reset();
+            }
+            currentStart = now;
+        } else {
+            while (now - currentStart >= CHUNK_NANOS) {
+                current = ( current + 1 ) % CHUNKS;
+                chunks[current].reset();
+                currentStart += CHUNK_NANOS;
+            }
+        }
+        interval = recorder.getIntervalHistogram(interval);
+        chunks[current].add(interval);
+        Histogram histogram = new Histogram(SIGNIFICANT_DIGITS);
+        for (Histogram chunk : chunks) {
+            histogram.add(chunk);
+        }
+        return new HdrSnapshot(histogram);
+    }
+
+    private static class HdrSnapshot extends Snapshot {
+
+        private final Histogram histogram;
+
+        private HdrSnapshot(Histogram histogram) {
+            this.histogram = histogram;
+        }
+
+        @Override
+        public double getValue(double quantile) {
+            return histogram.getValueAtPercentile(quantile * 100.0);
+        }
+
+        @Override
+        public long[] getValues() {
+            long[] values = new long[size()];
+            int i = 0;
+            for (HistogramIterationValue value : histogram.recordedValues()) {
+                for (long n = 0 ; n < value.getCountAtValueIteratedTo() && i < values.length ; n++) {
+                    values[i++] = value.getValueIteratedTo();
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(Integer.MAX_VALUE, histogram.getTotalCount());
+        }
+
+        @Override
+        public long getMax() {
+            return histogram.getMaxValue();
+        }
+
+        @Override
+        public double getMean() {
+            return histogram.getMean();
+        }
+
+        @Override
+        public long getMin() {
+            return histogram.getMinValue();
+        }
+
+        @Override
+        public double getStdDev() {
+            return histogram.getStdDeviation();
+        }
+
+        @Override
+        public void dump(OutputStream output) {
+            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+                for (long value : getValues()) {
+                    out.printf("%d%n", value);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.health.HealthCheck;
+import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.util.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs health checks in the background, and keeps the latest result of each
+ * <p>
+ * Every check runs on its own schedule and thread, so a slow downstream
+ * delays neither the other checks nor any request. Readers only ever see the
+ * latest results. The checks start running when the monitor is started. A
+ * result that is more than a few intervals old is reported unhealthy, as the
+ * check is hanging.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class HealthMonitor implements Managed {
+
+    /**
+     * Number of intervals without a new result before the latest one is too
+     * old to be trusted
+     */
+    private static final int STALE_INTERVALS = 3;
+
+    private final long interval;
+    private final Map<String, HealthCheck> checks;
+    private final Map<String, Status> statuses;
+    private ScheduledExecutorService scheduler;
+
+    public HealthMonitor(Duration interval) {
+        this.interval = interval.toMilliseconds();
+        this.checks = new LinkedHashMap<>();
+        this.statuses = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Add a check, before the monitor is started
+     *
+     * @param name  name of the check
+     * @param check check
+     * @return this
+     */
+    public HealthMonitor register(String name, HealthCheck check) {
+        checks.put(name, check);
+        return this;
+    }
+
+    public List<String> getNames() {
+        return new ArrayList<>(checks.keySet());
+    }
+
+    @Override
+    public void start() {
+        AtomicInteger counter = new AtomicInteger();
+        scheduler = Executors.newScheduledThreadPool(Math.max(1, checks.size()), r -> {
+            Thread thread = new Thread(r, "health-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (Map.Entry<String, HealthCheck> entry : checks.entrySet()) {
+            scheduler.scheduleWithFixedDelay(() -> run(entry.getKey(), entry.getValue()),
+                                             0, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    private void run(String name, HealthCheck check) {
+        long checkedAt = System.currentTimeMillis();
+        long start = System.nanoTime();
+        HealthCheck.Result result = check.execute();
+        long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        statuses.put(name, new Status(name, result.isHealthy(), result.getMessage(), latency, checkedAt));
+    }
+
+    /**
+     * The latest result of every check, in the order they were registered
+     *
+     * @return list of statuses, a check that has not run yet, or not for
+     *         several intervals, is unhealthy
+     */
+    public List<Status> snapshot() {
+        List<Status> snapshot = new ArrayList<>(checks.size());
+        for (String name : checks.keySet()) {
+            snapshot.add(status(name));
+        }
+        return snapshot;
+    }
+
+    private Status status(String name) {
+        Status status = statuses.get(name);
+        if (status == null) {
+            return new Status(name, false, null, 0, null);
+        }
+        // Counted from when the result arrived, so a slow check is not stale
+        if (status.getAge() - status.latency > STALE_INTERVALS * interval) {
+            return new Status(name, false, "Result is stale", status.latency, status.checkedAt);
+        }
+        return status;
+    }
+
+    /**
+     * A health check, that reports the latest result of a check
+     *
+     * @param name name of the check
+     * @return health check that never calls the downstream
+     */
+    public HealthCheck cached(String name) {
+        return new HealthCheck() {
+            @Override
+            protected Result check() throws Exception {
+                Status status = status(name);
+                String message = status.message == null ? status.describe() : status.message + " (" + status.describe() + ")";
+                return status.healthy ? Result.healthy(message) : Result.unhealthy(message);
+            }
+        };
+    }
+
+    /**
+     * Result of one run of a check
+     */
+    public static class Status {
+
+        public final String name;
+        public final boolean healthy;
+        public final String message;
+        public final long latency;
+        public final Long checkedAt;
+
+        private Status(String name, boolean healthy, String message, long latency, Long checkedAt) {
+            this.name = name;
+            this.healthy = healthy;
+            this.message = message;
+            this.latency = latency;
+            this.checkedAt = checkedAt;
+        }
+
+        /**
+         * Time since the check was started
+         *
+         * @return milliseconds or null if it has not run
+         */
+        public Long getAge() {
+            return checkedAt == null ? null : System.currentTimeMillis() - checkedAt;
+        }
+
+        private String describe() {
+            Long age = getAge();
+            return age == null ? "not checked yet" : "checked " + age + "ms ago in " + latency + "ms";
+        }
+    }
+}
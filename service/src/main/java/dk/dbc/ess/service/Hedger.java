@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Hedged calls: if a call hasn't answered within a percentile of the recent
+ * latency, an identical call is started, and the first answer wins
+ * <p>
+ * The latency is measured from when the call is actually made, not from when
+ * it is queued or waiting for a concurrency limit, as that is what the
+ * percentile is computed from. Otherwise queueing would trigger hedges,
+ * adding load when there is least room for it.
+ * <p>
+ * The extra load is limited by a budget: each call earns a percentage of a
+ * hedge, and a hedge can only be sent when a whole one has been earned.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class Hedger {
+
+    private static final int MIN_SAMPLES = 100;
+    private static final long DELAY_REFRESH = TimeUnit.SECONDS.toNanos(1);
+    private static final double MAX_TOKENS = 10.0;
+
+    private final Timer latency;
+    private final double quantile;
+    private final double tokensPerCall;
+    private final Meter hedges;
+    private final Meter hedgeWins;
+    private final Meter skippedBudget;
+
+    private double tokens;
+    private long delay;
+    private long delayRefreshed;
+    private boolean delayKnown;
+
+    /**
+     * Create a hedger
+     *
+     * @param latency    timer of the calls being hedged
+     * @param percentile percentile of the latency, after which a hedge is
+     *                   sent
+     * @param budget     max percentage of calls that are hedged
+     * @param metrics    registry
+     */
+    public Hedger(Timer latency, double percentile, double budget, MetricRegistry metrics) {
+        this.latency = latency;
+        this.quantile = percentile / 100.0;
+        this.tokensPerCall = budget / 100.0;
+        this.hedges = metrics.meter(getClass().getCanonicalName() + "#hedges");
+        this.hedgeWins = metrics.meter(getClass().getCanonicalName() + "#hedgeWins");
+        this.skippedBudget = metrics.meter(getClass().getCanonicalName() + "#skippedBudget");
+    }
+
+    /**
+     * Make a call, hedging it if it is slow
+     * <p>
+     * Cancelling the returned future cancels all attempts.
+     *
+     * @param <T>     result type
+     * @param attempt starts a call, and runs the given callback when the call
+     *                is made
+     * @return the first result
+     */
+    public <T> CompletableFuture<T> call(Function<Runnable, CompletableFuture<T>> attempt) {
+        long hedgeDelay = earn();
+        if (hedgeDelay < 0) {
+            return attempt.apply(() -> {
+            });
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicReference<ScheduledFuture<?>> timer = new AtomicReference<>();
+        CompletableFuture<T> primary = attempt.apply(() -> {
+            if (!result.isDone()) {
+                timer.set(Timeouts.schedule(() -> hedge(attempt, result), hedgeDelay, TimeUnit.NANOSECONDS));
+            }
+        });
+        primary.whenComplete((value, ex) -> {
+            if (ex != null) {
+                result.completeExceptionally(ex);
+            } else {
+                result.complete(value);
+            }
+        });
+        result.whenComplete((value, ex) -> {
+            ScheduledFuture<?> scheduled = timer.get();
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            primary.cancel(true);
+        });
+        return result;
+    }
+
+    /**
+     * Start a hedge, if the call is still running and there is budget for it
+     */
+    private <T> void hedge(Function<Runnable, CompletableFuture<T>> attempt, CompletableFuture<T> result) {
+        if (result.isDone()) {
+            return;
+        }
+        if (!spend()) {
+            skippedBudget.mark();
+            return;
+        }
+        CompletableFuture<T> hedge;
+        try {
+            hedge = attempt.apply(() -> {
+            });
+        } catch (RejectedExecutionException ex) {
+            return;
+        }
+        hedges.mark();
+        hedge.whenComplete((value, ex) -> {
+            if (ex == null && result.complete(value)) {
+                hedgeWins.mark();
+            }
+        });
+        result.whenComplete((value, ex) -> hedge.cancel(true));
+    }
+
+    /**
+     * Add this call's share of the budget, and find the hedge delay
+     *
+     * @return nanoseconds before hedging or -1 if not enough is known about
+     *         the latency
+     */
+    private synchronized long earn() {
+        tokens = Math.min(MAX_TOKENS, tokens + tokensPerCall);
+        long now = System.nanoTime();
+        if (!delayKnown || now - delayRefreshed > DELAY_REFRESH) {
+            delayKnown = true;
+            delayRefreshed = now;
+            delay = latency.getCount() < MIN_SAMPLES ? -1 :
+                    (long) latency.getSnapshot().getValue(quantile);
+        }
+        return delay;
+    }
+
+    private synchronized boolean spend() {
+        if (tokens < 1.0) {
+            return false;
+        }
+        tokens -= 1.0;
+        return true;
+    }
+}
@@ -18,9 +18,8 @@
  */
 package dk.dbc.ess.service;
 
-import com.codahale.metrics.health.HealthCheck;
 import dk.dbc.ess.service.response.HowRuResponse;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
@@ -31,27 +30,40 @@ import javax.ws.rs.core.Response;
 import static javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR;
 
 /**
+ * Health of the downstream services, from the latest background checks
+ * <p>
+ * A call never reaches the downstream services, see {@link HealthMonitor}.
  *
  * @author DBC {@literal <dbc.dk>}
  */
 @Path("howru")
 public class HowRU {
 
-    private final List<HealthCheck> checks;
+    private final HealthMonitor monitor;
 
-    public HowRU(HealthCheck... checks) {
-        this.checks = Arrays.asList(checks);
+    public HowRU(HealthMonitor monitor) {
+        this.monitor = monitor;
     }
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     public Response howru() {
-        boolean ok = checks.parallelStream()
-                .allMatch(c -> c.execute().isHealthy());
+        boolean ok = true;
+        Long age = 0L;
+        List<HowRuResponse.Check> checks = new ArrayList<>();
+        for (HealthMonitor.Status status : monitor.snapshot()) {
+            Long checkAge = status.getAge();
+            ok = ok && status.healthy;
+            age = age == null || checkAge == null ? null : Math.max(age, checkAge);
+            checks.add(new HowRuResponse.Check(status.name, status.healthy, status.message, status.latency, checkAge));
+        }
+        HowRuResponse response = ok ? new HowRuResponse(null) : new HowRuResponse("downstream error - check healthchecks on admin url");
+        response.age = age;
+        response.checks = checks;
         if (ok) {
-            return Response.ok(new HowRuResponse(null)).build();
+            return Response.ok(response).build();
         } else {
-            return Response.status(INTERNAL_SERVER_ERROR).entity(new HowRuResponse("downstream error - check healthchecks on admin url")).build();
+            return Response.status(INTERNAL_SERVER_ERROR).entity(response).build();
         }
     }
 
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import io.dropwizard.util.Duration;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class LimiterConfiguration {
+
+    @Min(1)
+    private int initialLimit = 20;
+
+    public int getInitialLimit() {
+        return initialLimit;
+    }
+
+    public void setInitialLimit(int initialLimit) {
+        this.initialLimit = initialLimit;
+    }
+
+    @Min(1)
+    private int minLimit = 1;
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public void setMinLimit(int minLimit) {
+        this.minLimit = minLimit;
+    }
+
+    @Min(1)
+    private int maxLimit = 512;
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public void setMaxLimit(int maxLimit) {
+        this.maxLimit = maxLimit;
+    }
+
+    @DecimalMin("0.1")
+    @DecimalMax("0.99")
+    private double backoffRatio = 0.9;
+
+    /**
+     * Factor the limit is multiplied by, when a call fails or is slow
+     *
+     * @return ratio
+     */
+    public double getBackoffRatio() {
+        return backoffRatio;
+    }
+
+    public void setBackoffRatio(double backoffRatio) {
+        this.backoffRatio = backoffRatio;
+    }
+
+    @DecimalMin("1.0")
+    private double rttTolerance = 2.0;
+
+    /**
+     * How many times the lowest seen round trip time a call may take, before
+     * it is considered slow
+     *
+     * @return factor
+     */
+    public double getRttTolerance() {
+        return rttTolerance;
+    }
+
+    public void setRttTolerance(double rttTolerance) {
+        this.rttTolerance = rttTolerance;
+    }
+
+    @Min(1)
+    private int rttWindow = 500;
+
+    /**
+     * Number of calls after which the lowest round trip time is measured
+     * anew, so the limiter follows changes in downstream capacity
+     *
+     * @return number of calls
+     */
+    public int getRttWindow() {
+        return rttWindow;
+    }
+
+    public void setRttWindow(int rttWindow) {
+        this.rttWindow = rttWindow;
+    }
+
+    @NotNull
+    private Duration maxWait = Duration.seconds(1);
+
+    /**
+     * How long a blocking call waits for the limit, before being rejected
+     *
+     * @return duration
+     */
+    public Duration getMaxWait() {
+        return maxWait;
+    }
+
+    public void setMaxWait(Duration maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    @Override
+    public String toString() {
+        return "LimiterConfiguration{" + "initialLimit=" + initialLimit + ", minLimit=" + minLimit + ", maxLimit=" + maxLimit + ", backoffRatio=" + backoffRatio + ", rttTolerance=" + rttTolerance + ", rttWindow=" + rttWindow + ", maxWait=" + maxWait + '}';
+    }
+}
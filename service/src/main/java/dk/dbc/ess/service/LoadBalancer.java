@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Client side load balancing over a list of equivalent endpoints
+ * <p>
+ * Two endpoints are picked at random, and the one with the lowest peak
+ * weighted average round trip time times outstanding calls is chosen. The
+ * average jumps to a slow call at once, and decays towards faster calls with
+ * the configured decay time.
+ * <p>
+ * An endpoint that fails (or is more than slow ratio slower than the fastest
+ * endpoint) a number of times in a row is ejected. After the eject time a
+ * single call is let through as a probe; if it succeeds the endpoint is
+ * reinstated, otherwise it is ejected again. The last endpoint in service is
+ * never ejected.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class LoadBalancer {
+
+    private final long decayNanos;
+    private final int maxFailures;
+    private final double slowRatio;
+    private final long ejectNanos;
+    private final LongSupplier clock;
+    private final Endpoint[] endpoints;
+    private final Endpoint[] candidates;
+
+    public LoadBalancer(String name, List<String> urls, LoadBalancerConfiguration config, MetricRegistry metrics) {
+        this(name, urls, config, metrics, System::nanoTime);
+    }
+
+    LoadBalancer(String name, List<String> urls, LoadBalancerConfiguration config, MetricRegistry metrics, LongSupplier clock) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("No endpoints for " + name);
+        }
+        this.decayNanos = Math.max(1, config.getDecayTime().toNanoseconds());
+        this.maxFailures = config.getMaxFailures();
+        this.slowRatio = config.getSlowRatio();
+        this.ejectNanos = config.getEjectTime().toNanoseconds();
+        this.clock = clock;
+        String prefix = getClass().getCanonicalName() + "#" + name + ".";
+        this.endpoints = urls.stream()
+                .distinct()
+                .map(url -> new Endpoint(url, prefix + url + ".", metrics))
+                .toArray(Endpoint[]::new);
+        this.candidates = new Endpoint[endpoints.length];
+    }
+
+    /**
+     * Pick an endpoint for a call
+     * <p>
+     * The outcome of the call has to be reported with
+     * {@link Endpoint#release(boolean, long)}, or the endpoint given back
+     * with {@link Endpoint#abandon()} if no call was made
+     *
+     * @return endpoint
+     */
+    public synchronized Endpoint choose() {
+        long now = clock.getAsLong();
+        int count = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.isAvailable(now)) {
+                candidates[count++] = endpoint;
+            }
+        }
+        Endpoint chosen;
+        if (count == 0) {
+            chosen = endpoints[0];
+            for (Endpoint endpoint : endpoints) {
+                if (endpoint.cost() < chosen.cost()) {
+                    chosen = endpoint;
+                }
+            }
+        } else if (count == 1) {
+            chosen = candidates[0];
+        } else {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int a = random.nextInt(count);
+            int b = random.nextInt(count - 1);
+            if (b >= a) {
+                b++;
+            }
+            chosen = candidates[a].cost() <= candidates[b].cost() ? candidates[a] : candidates[b];
+        }
+        if (chosen.ejected) {
+            chosen.probing = true;
+        }
+        chosen.outstanding++;
+        chosen.requests.mark();
+        return chosen;
+    }
+
+    private synchronized void release(Endpoint endpoint, boolean success, long rtt) {
+        long now = clock.getAsLong();
+        endpoint.outstanding--;
+        endpoint.update(rtt, now);
+        boolean failure = !success || isSlow(endpoint);
+        if (failure) {
+            endpoint.failures.mark();
+        }
+        if (endpoint.probing) {
+            endpoint.probing = false;
+            if (failure) {
+                eject(endpoint, now);
+            } else {
+                endpoint.ejected = false;
+                endpoint.consecutiveFailures = 0;
+            }
+        } else if (!failure) {
+            endpoint.consecutiveFailures = 0;
+        } else if (++endpoint.consecutiveFailures >= maxFailures && !endpoint.ejected && inService() > 1) {
+            eject(endpoint, now);
+        }
+    }
+
+    private synchronized void abandon(Endpoint endpoint) {
+        endpoint.outstanding--;
+        endpoint.probing = false;
+    }
+
+    private boolean isSlow(Endpoint endpoint) {
+        double fastest = Double.MAX_VALUE;
+        for (Endpoint other : endpoints) {
+            if (other != endpoint && !other.ejected && other.ewma > 0) {
+                fastest = Math.min(fastest, other.ewma);
+            }
+        }
+        return fastest != Double.MAX_VALUE && endpoint.ewma > fastest * slowRatio;
+    }
+
+    private int inService() {
+        int count = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (!endpoint.ejected) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void eject(Endpoint endpoint, long now) {
+        endpoint.ejected = true;
+        endpoint.ejectedUntil = now + ejectNanos;
+        endpoint.consecutiveFailures = 0;
+        endpoint.ejections.mark();
+    }
+
+    public class Endpoint {
+
+        private final String url;
+        private final Meter requests;
+        private final Meter failures;
+        private final Meter ejections;
+
+        private int outstanding;
+        private double ewma;
+        private long lastUpdate;
+        private int consecutiveFailures;
+        private boolean ejected;
+        private boolean probing;
+        private long ejectedUntil;
+
+        private Endpoint(String url, String prefix, MetricRegistry metrics) {
+            this.url = url;
+            this.requests = metrics.meter(prefix + "requests");
+            this.failures = metrics.meter(prefix + "failures");
+            this.ejections = metrics.meter(prefix + "ejections");
+            metrics.gauge(prefix + "outstanding", () -> (Gauge<Integer>) this::getOutstanding);
+            metrics.gauge(prefix + "latency", () -> (Gauge<Long>) () -> TimeUnit.NANOSECONDS.toMillis(getLatency()));
+            metrics.gauge(prefix + "ejected", () -> (Gauge<Integer>) () -> isEjected() ? 1 : 0);
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * Report the outcome of a call
+         *
+         * @param success  if the call succeeded
+         * @param duration nanoseconds the call took
+         */
+        public void release(boolean success, long duration) {
+            LoadBalancer.this.release(this, success, duration);
+        }
+
+        /**
+         * Give the endpoint back without an outcome, when the call was never
+         * made
+         */
+        public void abandon() {
+            LoadBalancer.this.abandon(this);
+        }
+
+        public int getOutstanding() {
+            synchronized (LoadBalancer.this) {
+                return outstanding;
+            }
+        }
+
+        /**
+         * Peak weighted average round trip time
+         *
+         * @return nanoseconds
+         */
+        public long getLatency() {
+            synchronized (LoadBalancer.this) {
+                return (long) ewma;
+            }
+        }
+
+        public boolean isEjected() {
+            synchronized (LoadBalancer.this) {
+                return ejected;
+            }
+        }
+
+        private boolean isAvailable(long now) {
+            if (!ejected) {
+                return true;
+            }
+            return now - ejectedUntil >= 0 && !probing;
+        }
+
+        private double cost() {
+            return ( ewma + 1.0 ) * ( outstanding + 1 );
+        }
+
+        private void update(long rtt, long now) {
+            if (rtt > ewma) {
+                ewma = rtt;
+            } else {
+                double weight = Math.exp(-(double) ( now - lastUpdate ) / decayNanos);
+                ewma = ewma * weight + rtt * ( 1.0 - weight );
+            }
+            lastUpdate = now;
+        }
+
+        @Override
+        public String toString() {
+            return url;
+        }
+    }
+}
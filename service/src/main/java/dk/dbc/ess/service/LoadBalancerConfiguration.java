@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import io.dropwizard.util.Duration;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class LoadBalancerConfiguration {
+
+    @NotNull
+    private Duration decayTime = Duration.seconds(10);
+
+    /**
+     * Time constant of the latency average - how fast old round trip times
+     * are forgotten
+     *
+     * @return duration
+     */
+    public Duration getDecayTime() {
+        return decayTime;
+    }
+
+    public void setDecayTime(Duration decayTime) {
+        this.decayTime = decayTime;
+    }
+
+    @Min(1)
+    private int maxFailures = 5;
+
+    /**
+     * Number of consecutive failed calls, before an endpoint is ejected
+     *
+     * @return number of calls
+     */
+    public int getMaxFailures() {
+        return maxFailures;
+    }
+
+    public void setMaxFailures(int maxFailures) {
+        this.maxFailures = maxFailures;
+    }
+
+    @DecimalMin("1.0")
+    private double slowRatio = 10.0;
+
+    /**
+     * How many times slower than the fastest endpoint, an endpoint may be
+     * before it is ejected
+     *
+     * @return factor
+     */
+    public double getSlowRatio() {
+        return slowRatio;
+    }
+
+    public void setSlowRatio(double slowRatio) {
+        this.slowRatio = slowRatio;
+    }
+
+    @NotNull
+    private Duration ejectTime = Duration.seconds(30);
+
+    /**
+     * How long an ejected endpoint is left alone, before a single call is
+     * let through to probe it
+     *
+     * @return duration
+     */
+    public Duration getEjectTime() {
+        return ejectTime;
+    }
+
+    public void setEjectTime(Duration ejectTime) {
+        this.ejectTime = ejectTime;
+    }
+
+    @Override
+    public String toString() {
+        return "LoadBalancerConfiguration{" + "decayTime=" + decayTime + ", maxFailures=" + maxFailures + ", slowRatio=" + slowRatio + ", ejectTime=" + ejectTime + '}';
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import dk.dbc.Pool;
+import dk.dbc.openformat.FormatRequest;
+import dk.dbc.openformat.FormatResponse;
+import dk.dbc.sru.sruresponse.SearchRetrieveResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * JAXB marshalling of the OpenFormat and SRU documents
+ * <p>
+ * The context is built once, and marshallers and unmarshallers are pooled,
+ * as they are expensive to create but not thread safe.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class Marshalling {
+
+    private static final int POOL_SIZE = 256;
+
+    public static final Marshalling INSTANCE = new Marshalling(FormatRequest.class, FormatResponse.class, SearchRetrieveResponse.class);
+
+    private static final XMLInputFactory XIF = newXMLInputFactory();
+
+    private final Set<Class<?>> types;
+    private final JAXBContext context;
+    private final Pool<Marshaller> marshallers;
+    private final Pool<Unmarshaller> unmarshallers;
+
+    private static XMLInputFactory newXMLInputFactory() {
+        synchronized (XMLInputFactory.class) {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            return factory;
+        }
+    }
+
+    public Marshalling(Class<?>... types) {
+        this.types = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(types)));
+        try {
+            this.context = JAXBContext.newInstance(types);
+        } catch (JAXBException ex) {
+            throw new RuntimeException("Error creating JAXB context", ex);
+        }
+        this.marshallers = Pool.builder()
+                .max(POOL_SIZE)
+                .ttl(1, TimeUnit.MINUTES)
+                .build(this::newMarshaller);
+        this.unmarshallers = Pool.builder()
+                .max(POOL_SIZE)
+                .ttl(1, TimeUnit.MINUTES)
+                .build(this::newUnmarshaller);
+    }
+
+    private Marshaller newMarshaller() {
+        try {
+            return context.createMarshaller();
+        } catch (JAXBException ex) {
+            throw new RuntimeException("Error creating marshaller", ex);
+        }
+    }
+
+    private Unmarshaller newUnmarshaller() {
+        try {
+            return context.createUnmarshaller();
+        } catch (JAXBException ex) {
+            throw new RuntimeException("Error creating unmarshaller", ex);
+        }
+    }
+
+    /**
+     * If this knows the type
+     *
+     * @param type class
+     * @return if the class is one the context was built for
+     */
+    public boolean handles(Class<?> type) {
+        return types.contains(type);
+    }
+
+    public void marshal(Object object, OutputStream os) throws IOException {
+        try (Pool.Element<Marshaller> marshaller = marshallers.take()) {
+            marshaller.value().marshal(object, os);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for marshaller");
+        } catch (JAXBException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Marshal for logging
+     *
+     * @param object the object
+     * @return xml
+     * @throws IOException if the object cannot be marshalled
+     */
+    public String toString(Object object) throws IOException {
+        StringWriter sw = new StringWriter();
+        try (Pool.Element<Marshaller> marshaller = marshallers.take()) {
+            marshaller.value().marshal(object, sw);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for marshaller");
+        } catch (JAXBException ex) {
+            throw new IOException(ex);
+        }
+        return sw.toString();
+    }
+
+    public <T> T unmarshal(InputStream is, Class<T> type) throws IOException {
+        try (Pool.Element<Unmarshaller> unmarshaller = unmarshallers.take()) {
+            XMLStreamReader reader = XIF.createXMLStreamReader(is);
+            try {
+                return unmarshaller.value().unmarshal(reader, type).getValue();
+            } finally {
+                reader.close();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for unmarshaller");
+        } catch (JAXBException | XMLStreamException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Use a pooled unmarshaller
+     *
+     * @return unmarshaller, that has to be closed after use
+     * @throws InterruptedException if interrupted while waiting for one
+     */
+    public Pool.Element<Unmarshaller> unmarshaller() throws InterruptedException {
+        return unmarshallers.take();
+    }
+}
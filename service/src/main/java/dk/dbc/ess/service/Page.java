@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import dk.dbc.ess.service.response.BaseResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+/**
+ * A page of search results, with records in the process of being formatted
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class Page {
+
+    private static final Logger log = LoggerFactory.getLogger(Page.class);
+
+    private final long hits;
+    private final List<CompletableFuture<FormattedRecord>> records;
+    private final List<BaseResult> bases;
+    private final Timings timings;
+
+    public Page(long hits, List<CompletableFuture<FormattedRecord>> records) {
+        this(hits, records, null);
+    }
+
+    public Page(long hits, List<CompletableFuture<FormattedRecord>> records, List<BaseResult> bases) {
+        this(hits, records, bases, new Timings());
+    }
+
+    public Page(long hits, List<CompletableFuture<FormattedRecord>> records, List<BaseResult> bases, Timings timings) {
+        this.hits = hits;
+        this.records = records;
+        this.bases = bases;
+        this.timings = timings;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public List<CompletableFuture<FormattedRecord>> getRecords() {
+        return records;
+    }
+
+    /**
+     * Outcome per base of a multi base search
+     *
+     * @return list of results or null if this is from a single base
+     */
+    public List<BaseResult> getBases() {
+        return bases;
+    }
+
+    /**
+     * Where the time went, shared with copies of this page
+     *
+     * @return timings
+     */
+    public Timings getTimings() {
+        return timings;
+    }
+
+    /**
+     * The page for one of several responses sharing this page
+     * <p>
+     * A DOM is not safe for concurrent reads, so every response gets its own
+     * copy of each record, see {@link FormattedRecord#copy()}.
+     *
+     * @return page with futures of copied records
+     */
+    public Page copy() {
+        List<CompletableFuture<FormattedRecord>> copies = new ArrayList<>(records.size());
+        for (CompletableFuture<FormattedRecord> record : records) {
+            copies.add(record.thenApply(FormattedRecord::copy));
+        }
+        return new Page(hits, copies, bases, timings);
+    }
+
+    /**
+     * Completes when all records have been formatted, failed or been
+     * cancelled
+     *
+     * @return future
+     */
+    public CompletableFuture<Void> done() {
+        return CompletableFuture.allOf(records.stream()
+                .map(record -> record.handle((e, ex) -> null))
+                .toArray(CompletableFuture<?>[]::new));
+    }
+
+    /**
+     * Cancel formatting of all records, for a page nobody waits for
+     */
+    public void cancel() {
+        for (CompletableFuture<FormattedRecord> record : records) {
+            record.cancel(true);
+        }
+    }
+
+    /**
+     * Cancel formatting that has not finished by the deadline
+     *
+     * @param deadline when to cancel
+     * @return this
+     */
+    public Page expireAt(Deadline deadline) {
+        ScheduledFuture<?> timer = Timeouts.schedule(this::cancel, deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        done().whenComplete((v, ex) -> timer.cancel(false));
+        return this;
+    }
+
+    /**
+     * The error document to use in place of a failed record
+     *
+     * @param ex         why the record failed
+     * @param trackingId tracking id for logging
+     * @return error document
+     */
+    static Element errorDocument(Throwable ex, String trackingId) {
+        if (ex instanceof CompletionException && ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+        if (ex instanceof CancellationException) {
+            log.error("Record not formatted before deadline for: " + trackingId);
+            return Formatting.ERROR_DOCUMENT.getDocument(Formatting.DEADLINE_EXCEEDED);
+        }
+        log.error("Error formatting record: " + ex.getMessage() + " for: " + trackingId);
+        log.debug("Error formatting record:", ex);
+        return Formatting.ERROR_DOCUMENT.getDocument("Internal Server Error");
+    }
+}
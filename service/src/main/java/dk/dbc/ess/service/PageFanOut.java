@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches a range of records larger than a page, as a number of pages
+ * <p>
+ * Pages are fetched in parallel, with a bounded number in flight, and
+ * merged in order. Once the number of hits is known, pages starting beyond
+ * it are not requested. If a page fails (or the merged page is cancelled),
+ * no more pages are requested, and the fetching and formatting of the other
+ * pages is cancelled.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+class PageFanOut {
+
+    @FunctionalInterface
+    interface Fetcher {
+
+        CompletableFuture<Page> fetch(int start, int rows);
+    }
+
+    private final Fetcher fetcher;
+    private final int start;
+    private final int end;
+    private final int pageSize;
+    private final List<CompletableFuture<Page>> pages;
+    private final AtomicInteger next;
+    private final AtomicLong hits;
+    private final CompletableFuture<Page> result;
+
+    private PageFanOut(Fetcher fetcher, int start, int rows, int pageSize) {
+        this.fetcher = fetcher;
+        this.start = start;
+        this.end = start + rows;
+        this.pageSize = pageSize;
+        int count = ( rows + pageSize - 1 ) / pageSize;
+        this.pages = new ArrayList<>(count);
+        for (int i = 0 ; i < count ; i++) {
+            pages.add(new CompletableFuture<>());
+        }
+        this.next = new AtomicInteger();
+        this.hits = new AtomicLong(-1);
+        this.result = new CompletableFuture<>();
+        result.whenComplete((p, ex) -> {
+            if (ex != null) {
+                cancel();
+            }
+        });
+    }
+
+    /**
+     * Fetch rows records from start
+     *
+     * @param fetcher     fetches a single page
+     * @param start       first record
+     * @param rows        number of records
+     * @param pageSize    max records per page
+     * @param concurrency max pages in flight
+     * @return merged page
+     */
+    static CompletableFuture<Page> fetch(Fetcher fetcher, int start, int rows, int pageSize, int concurrency) {
+        PageFanOut fanOut = new PageFanOut(fetcher, start, rows, pageSize);
+        for (int i = 0 ; i < Math.max(concurrency, 1) ; i++) {
+            fanOut.fetchNext();
+        }
+        return fanOut.merged();
+    }
+
+    private void fetchNext() {
+        int i = next.getAndIncrement();
+        if (i >= pages.size() || result.isDone()) {
+            return;
+        }
+        CompletableFuture<Page> page = pages.get(i);
+        int pageStart = start + i * pageSize;
+        long knownHits = hits.get();
+        if (knownHits >= 0 && pageStart > knownHits) {
+            page.complete(new Page(knownHits, Collections.emptyList()));
+            fetchNext();
+            return;
+        }
+        try {
+            CompletableFuture<Page> fetched = fetcher.fetch(pageStart, Math.min(pageSize, end - pageStart));
+            result.whenComplete((p, ex) -> {
+                if (ex != null) {
+                    fetched.cancel(true);
+                }
+            });
+            fetched.whenComplete((p, ex) -> {
+                if (ex != null) {
+                    page.completeExceptionally(ex);
+                    result.completeExceptionally(ex);
+                } else {
+                    hits.compareAndSet(-1, p.getHits());
+                    page.complete(p);
+                }
+                fetchNext();
+            });
+        } catch (RuntimeException ex) {
+            page.completeExceptionally(ex);
+            result.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * The merged page, that fails as soon as a page fails
+     */
+    private CompletableFuture<Page> merged() {
+        CompletableFuture.allOf(pages.toArray(new CompletableFuture<?>[pages.size()]))
+                .thenAccept(v -> {
+                    List<CompletableFuture<FormattedRecord>> records = new ArrayList<>();
+                    Timings timings = new Timings();
+                    for (CompletableFuture<Page> page : pages) {
+                        records.addAll(page.join().getRecords());
+                        timings.merge(page.join().getTimings());
+                    }
+                    result.complete(new Page(pages.get(0).join().getHits(), records, null, timings));
+                });
+        return result;
+    }
+
+    /**
+     * Cancel formatting of all pages, those still being fetched when they
+     * arrive
+     */
+    private void cancel() {
+        for (CompletableFuture<Page> page : pages) {
+            page.thenAccept(Page::cancel);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import dk.dbc.sru.sruresponse.Record;
+import dk.dbc.sru.sruresponse.RecordXMLEscapingDefinition;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Sends the records of one result page to formatting
+ * <p>
+ * Records are formatted one by one or in batches, and the resulting futures
+ * are kept in page order.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+class PageFormatter {
+
+    private static final Logger log = LoggerFactory.getLogger(PageFormatter.class);
+
+    private final ExecutorService executor;
+    private final Formatting formatting;
+    private final FormatCache cache;
+    private final Hedger hedger;
+    private final int batchSize;
+    private final String output;
+    private final String idPrefix;
+    private final String trackingId;
+    private final Deadline deadline;
+    private final List<CompletableFuture<FormattedRecord>> futures;
+    private final Timings timings;
+    private Formatting.Batch batch;
+
+    PageFormatter(ExecutorService executor, Formatting formatting, FormatCache cache, Hedger hedger, int batchSize, String output, String idPrefix, String trackingId, Deadline deadline) {
+        this.executor = executor;
+        this.formatting = formatting;
+        this.cache = cache;
+        this.hedger = hedger;
+        this.batchSize = batchSize;
+        this.output = output;
+        this.idPrefix = idPrefix;
+        this.trackingId = trackingId;
+        this.deadline = deadline;
+        this.futures = new ArrayList<>();
+        this.timings = new Timings();
+        this.batch = null;
+    }
+
+    /**
+     * Queue waits and formatting times of the records
+     *
+     * @return timings
+     */
+    Timings getTimings() {
+        return timings;
+    }
+
+    /**
+     * Schedule formatting of a record
+     *
+     * @param record record from the sru response
+     */
+    void add(Record record) {
+        CompletableFuture<FormattedRecord> future;
+        RecordXMLEscapingDefinition esc = record.getRecordXMLEscaping();
+        log.debug("esc = " + esc);
+        if (esc != RecordXMLEscapingDefinition.XML) {
+            log.error("Expected xml escaped record in response got: " + record.getRecordXMLEscaping());
+            future = submit(formatting.formattingError("Internal Server Error"));
+        } else {
+            List<Object> content = record.getRecordData().getContent();
+            if (content.size() == 1) {
+                Object object = content.get(0);
+                if (object instanceof Element) {
+                    Element e = (Element) object;
+                    future = formatOrCached(e, remoteId(e));
+                } else {
+                    log.error("Not of type xml: " + object.getClass().getCanonicalName() + " should not happen.");
+                    future = submit(formatting.formattingError("Internal Server Error"));
+                }
+            } else {
+                log.error("Expected 1 record in response, got: " + content.size());
+                for (Object object : content) {
+                    log.debug("Types: " + object.getClass().getCanonicalName());
+                }
+                future = submit(formatting.formattingError("Internal Server Error"));
+            }
+        }
+        futures.add(future);
+    }
+
+    /**
+     * Schedule formatting of a record, that is kept serialized
+     *
+     * @param record record from the sru response
+     */
+    void add(SruRecord record) {
+        CompletableFuture<FormattedRecord> future;
+        if (record.getData() == null) {
+            future = submit(formatting.formattingError("Internal Server Error"));
+        } else {
+            String controlNumber = record.getControlNumber();
+            future = formatOrCached(record.getData(), controlNumber == null ? null : idPrefix + controlNumber);
+        }
+        futures.add(future);
+    }
+
+    /**
+     * Submit the last partial batch
+     *
+     * @return futures of all records in page order
+     */
+    List<CompletableFuture<FormattedRecord>> finish() {
+        if (batch != null) {
+            submitBatch(batch);
+            batch = null;
+        }
+        return futures;
+    }
+
+    /**
+     * Cancel all scheduled formatting
+     */
+    void cancel() {
+        for (CompletableFuture<FormattedRecord> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    private CompletableFuture<FormattedRecord> formatOrCached(Object in, String remoteId) {
+        if (remoteId == null) {
+            String id = idPrefix + UUID.randomUUID().toString();
+            return timed(format(in, id, false), id);
+        }
+        FormattedRecord cached = cache == null ? null : cache.get(remoteId, output);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return timed(format(in, remoteId, cache != null), remoteId);
+    }
+
+    /**
+     * Record the formatting time of a record
+     * <p>
+     * The time is recorded before the returned future completes, so it is
+     * included when the page is done. Cancelling the returned future cancels
+     * the formatting.
+     */
+    private CompletableFuture<FormattedRecord> timed(CompletableFuture<FormattedRecord> future, String remoteId) {
+        long submitted = System.nanoTime();
+        return Futures.whenComplete(future, (formatted, ex) -> timings.formatted(remoteId, System.nanoTime() - submitted));
+    }
+
+    /**
+     * Schedule formatting of a record
+     * <p>
+     * When caching, the result is put into the cache before the future
+     * completes, so the cache is the only reader of the DOM at that time.
+     */
+    private CompletableFuture<FormattedRecord> format(Object e, String remoteId, boolean cacheResult) {
+        if (batchSize > 1) {
+            if (batch == null) {
+                batch = formatting.formattingBatch(output, trackingId, deadline);
+            }
+            CompletableFuture<FormattedRecord> future = batch.add(e, remoteId);
+            if (batch.size() >= batchSize) {
+                submitBatch(batch);
+                batch = null;
+            }
+            if (cacheResult) {
+                future = Futures.cancelling(future.thenApply(formatted -> {
+                    cache.put(remoteId, output, formatted);
+                    return formatted;
+                }), future);
+            }
+            return future;
+        } else if (hedger != null) {
+            return hedger.call(started -> submit(cached(formatting.formattingCall(e, output, remoteId, trackingId, deadline, started), remoteId, cacheResult)));
+        } else {
+            return submit(cached(formatting.formattingCall(e, output, remoteId, trackingId, deadline), remoteId, cacheResult));
+        }
+    }
+
+    /**
+     * Put the result of a formatting task into the cache
+     *
+     * @param call        formatting task
+     * @param remoteId    id of the record
+     * @param cacheResult if the result should be cached
+     * @return task
+     */
+    private Callable<FormattedRecord> cached(Callable<FormattedRecord> call, String remoteId, boolean cacheResult) {
+        if (!cacheResult) {
+            return call;
+        }
+        return () -> {
+            FormattedRecord formatted = call.call();
+            cache.put(remoteId, output, formatted);
+            return formatted;
+        };
+    }
+
+    /**
+     * Find the id of a marcxchange record
+     *
+     * @param e record
+     * @return prefixed content of controlfield 001 or null if none
+     */
+    private String remoteId(Element e) {
+        for (Node child = e.getFirstChild() ; child != null ; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE &&
+                "controlfield".equals(child.getLocalName())) {
+                NamedNodeMap attrs = child.getAttributes();
+                Node tag = attrs.getNamedItem("tag");
+                if (tag != null &&
+                    "001".equals(tag.getNodeValue())) {
+                    Node id = child.getFirstChild();
+                    if (id.getNodeType() == Node.TEXT_NODE) {
+                        String remoteId = idPrefix + id.getNodeValue();
+                        log.debug("remoteId = " + remoteId);
+                        return remoteId;
+                    }
+                    break;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Run a batch on the formatting executor
+     * <p>
+     * The batch is cancelled when all of its records are cancelled.
+     *
+     * @param batch batch of records
+     */
+    private void submitBatch(Formatting.Batch batch) {
+        long submitted = System.nanoTime();
+        Future<?> task = executor.submit(() -> {
+            timings.queued(System.nanoTime() - submitted);
+            return batch.call();
+        });
+        List<CompletableFuture<FormattedRecord>> records = batch.getResults();
+        CompletableFuture.allOf(records.stream()
+                .map(record -> record.handle((formatted, ex) -> null))
+                .toArray(CompletableFuture<?>[]::new))
+                .thenRun(() -> {
+                    if (records.stream().allMatch(CompletableFuture::isCancelled)) {
+                        task.cancel(true);
+                    }
+                });
+    }
+
+    /**
+     * Run a task on the formatting executor
+     * <p>
+     * Cancelling the returned future cancels the task.
+     *
+     * @param <T>      result type
+     * @param callable task
+     * @return future result
+     */
+    private <T> CompletableFuture<T> submit(Callable<T> callable) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        long submitted = System.nanoTime();
+        Future<?> task = executor.submit(() -> {
+            timings.queued(System.nanoTime() - submitted);
+            try {
+                result.complete(callable.call());
+            } catch (Exception ex) {
+                result.completeExceptionally(ex);
+            }
+            return null;
+        });
+        return Futures.cancelling(result, task);
+    }
+}
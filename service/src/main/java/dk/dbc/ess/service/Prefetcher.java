@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.dropwizard.util.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Speculative fetching of pages, that are expected to be requested soon
+ * <p>
+ * Prefetched pages are kept for a short while, and are handed to the first
+ * request for them. Prefetching only happens when there is budget for it
+ * (a global limit on pages being prefetched) and the formatting executor has
+ * nothing queued. Records of prefetched pages are formatted on a few low
+ * priority threads of their own, not on the formatting executor, so
+ * prefetching never takes threads from foreground requests.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class Prefetcher {
+
+    private static final Logger log = LoggerFactory.getLogger(Prefetcher.class);
+
+    private final ExecutorService executor;
+    private final ExecutorService prefetchExecutor;
+    private final Semaphore budget;
+    private final Cache<List<Object>, CompletableFuture<Page>> pages;
+    private final Meter started;
+    private final Meter used;
+    private final Meter wasted;
+    private final Meter skippedBusy;
+    private final Meter skippedBudget;
+
+    public Prefetcher(int budget, Duration ttl, ExecutorService executor, MetricRegistry metrics) {
+        this.executor = executor;
+        this.prefetchExecutor = prefetchExecutor(Math.max(budget, 1));
+        this.budget = new Semaphore(budget);
+        this.started = metrics.meter(metricName("started"));
+        this.used = metrics.meter(metricName("used"));
+        this.wasted = metrics.meter(metricName("wasted"));
+        this.skippedBusy = metrics.meter(metricName("skippedBusy"));
+        this.skippedBudget = metrics.meter(metricName("skippedBudget"));
+        this.pages = Caffeine.newBuilder()
+                .expireAfterWrite(ttl.toNanoseconds(), TimeUnit.NANOSECONDS)
+                .maximumSize(Math.max(budget, 1) * 4L)
+                .removalListener((List<Object> key, CompletableFuture<Page> page, RemovalCause cause) -> {
+                    if (cause.wasEvicted()) {
+                        wasted.mark();
+                    }
+                })
+                .build();
+        metrics.gauge(metricName("inProgress"), () -> (Gauge<Integer>) () -> budget - this.budget.availablePermits());
+    }
+
+    /**
+     * Threads for formatting prefetched records
+     * <p>
+     * The queue is not bounded, it is limited by the budget times the page
+     * size.
+     */
+    private static ExecutorService prefetchExecutor(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "prefetch-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private String metricName(String name) {
+        return getClass().getCanonicalName() + "#" + name;
+    }
+
+    /**
+     * Take a prefetched page
+     *
+     * @param key search key
+     * @return future page or null if none has been prefetched
+     */
+    public CompletableFuture<Page> take(List<Object> key) {
+        CompletableFuture<Page> page = pages.asMap().remove(key);
+        if (page != null) {
+            used.mark();
+        }
+        return page;
+    }
+
+    /**
+     * Prefetch a page if the system is idle enough
+     *
+     * @param key   search key
+     * @param fetch fetches the page, formatting on the given executor
+     */
+    public void prefetch(List<Object> key, Function<ExecutorService, CompletableFuture<Page>> fetch) {
+        if (pages.getIfPresent(key) != null) {
+            return;
+        }
+        if (isBusy()) {
+            skippedBusy.mark();
+            return;
+        }
+        if (!budget.tryAcquire()) {
+            skippedBudget.mark();
+            return;
+        }
+        try {
+            CompletableFuture<Page> page = fetch.apply(prefetchExecutor);
+            started.mark();
+            pages.put(key, page);
+            page.whenComplete((p, ex) -> {
+                if (ex != null) {
+                    log.debug("Prefetch failed: " + ex.getMessage());
+                    pages.asMap().remove(key, page);
+                }
+            });
+            page.thenCompose(Page::done)
+                    .whenComplete((v, ex) -> budget.release());
+        } catch (RuntimeException ex) {
+            budget.release();
+            log.debug("Prefetch failed: " + ex.getMessage());
+        }
+    }
+
+    private boolean isBusy() {
+        return executor instanceof ThreadPoolExecutor &&
+               !( (ThreadPoolExecutor) executor ).getQueue().isEmpty();
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Metrics in the Prometheus text exposition format
+ * <p>
+ * Metric names are turned into Prometheus names ({@code a.b#c} becomes
+ * {@code a_b_c}), and tags from {@link TaggedMetrics} into labels. Gauges and
+ * counters are exposed as gauges, meters as counters ({@code _total}),
+ * histograms as summaries, and timers as summaries in seconds
+ * ({@code _seconds}).
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class PrometheusServlet extends HttpServlet {
+
+    private static final long serialVersionUID = -3617460640577931352L;
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final double[] QUANTILES = {0.5, 0.75, 0.95, 0.98, 0.99, 0.999};
+    private static final double SECONDS_PER_NANO = 1.0 / TimeUnit.SECONDS.toNanos(1);
+
+    private final transient MetricRegistry metrics;
+
+    public PrometheusServlet(MetricRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(CONTENT_TYPE);
+        resp.setHeader("Cache-Control", "must-revalidate,no-cache,no-store");
+        try (Writer writer = resp.getWriter()) {
+            write(writer);
+        }
+    }
+
+    /**
+     * Write all metrics, grouped by Prometheus name
+     *
+     * @param writer destination
+     * @throws IOException if writing fails
+     */
+    void write(Writer writer) throws IOException {
+        Map<String, Family> families = new LinkedHashMap<>();
+        for (Map.Entry<String, Metric> entry : new TreeMap<>(metrics.getMetrics()).entrySet()) {
+            String name = entry.getKey();
+            Metric metric = entry.getValue();
+            String labels = "";
+            int brace = name.indexOf('{');
+            if (brace >= 0 && name.endsWith("}")) {
+                labels = labels(name.substring(brace + 1, name.length() - 1));
+                name = name.substring(0, brace);
+            }
+            name = sanitize(name);
+            if (metric instanceof Gauge) {
+                Object value = ( (Gauge<?>) metric ).getValue();
+                if (value instanceof Boolean) {
+                    value = (Boolean) value ? 1 : 0;
+                }
+                if (value instanceof Number) {
+                    family(families, name, "gauge")
+                            .sample(name, labels, ( (Number) value ).doubleValue());
+                }
+            } else if (metric instanceof Counter) {
+                family(families, name, "gauge")
+                        .sample(name, labels, ( (Counter) metric ).getCount());
+            } else if (metric instanceof Meter) {
+                name = name + "_total";
+                family(families, name, "counter")
+                        .sample(name, labels, ( (Meter) metric ).getCount());
+            } else if (metric instanceof Timer) {
+                Timer timer = (Timer) metric;
+                summary(family(families, name + "_seconds", "summary"), name + "_seconds", labels,
+                        timer.getSnapshot(), SECONDS_PER_NANO, timer.getCount());
+            } else if (metric instanceof Histogram) {
+                Histogram histogram = (Histogram) metric;
+                summary(family(families, name, "summary"), name, labels,
+                        histogram.getSnapshot(), 1.0, histogram.getCount());
+            }
+        }
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            writer.append("# TYPE ").append(entry.getKey())
+                    .append(' ').append(entry.getValue().type).append('\n');
+            writer.append(entry.getValue().samples);
+        }
+    }
+
+    private static Family family(Map<String, Family> families, String name, String type) {
+        return families.computeIfAbsent(name, n -> new Family(type));
+    }
+
+    private static void summary(Family family, String name, String labels, Snapshot snapshot, double scale, long count) {
+        for (double quantile : QUANTILES) {
+            String quantileLabel = "quantile=\"" + quantile + "\"";
+            family.sample(name, labels.isEmpty() ? quantileLabel : labels + "," + quantileLabel,
+                          snapshot.getValue(quantile) * scale);
+        }
+        family.sample(name + "_count", labels, count);
+    }
+
+    /**
+     * Convert tags from a metric name to Prometheus labels
+     *
+     * @param tags key=value,key=value
+     * @return key="value",key="value"
+     */
+    static String labels(String tags) {
+        StringBuilder sb = new StringBuilder();
+        for (String tag : tags.split(",")) {
+            String[] kv = tag.split("=", 2);
+            if (kv.length != 2) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(sanitize(kv[0])).append("=\"");
+            for (char c : kv[1].toCharArray()) {
+                switch (c) {
+                    case '\\':
+                        sb.append("\\\\");
+                        break;
+                    case '"':
+                        sb.append("\\\"");
+                        break;
+                    case '\n':
+                        sb.append("\\n");
+                        break;
+                    default:
+                        sb.append(c);
+                        break;
+                }
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    static String sanitize(String name) {
+        String sanitized = name.replaceAll("[^a-zA-Z0-9_:]", "_");
+        if (!sanitized.isEmpty() && Character.isDigit(sanitized.charAt(0))) {
+            return "_" + sanitized;
+        }
+        return sanitized;
+    }
+
+    private static class Family {
+
+        private final String type;
+        private final StringBuilder samples;
+
+        private Family(String type) {
+            this.type = type;
+            this.samples = new StringBuilder();
+        }
+
+        private void sample(String name, String labels, double value) {
+            samples.append(name);
+            if (!labels.isEmpty()) {
+                samples.append('{').append(labels).append('}');
+            }
+            samples.append(' ').append(format(value)).append('\n');
+        }
+
+        private static String format(double value) {
+            if (Double.isNaN(value)) {
+                return "NaN";
+            }
+            if (Double.isInfinite(value)) {
+                return value > 0 ? "+Inf" : "-Inf";
+            }
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                return Long.toString((long) value);
+            }
+            return Double.toString(value);
+        }
+    }
+}
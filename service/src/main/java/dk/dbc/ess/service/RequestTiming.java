@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.ws.rs.core.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Latency breakdown of a single request
+ * <p>
+ * The phases are sent to the caller in a Server-Timing header, and logged
+ * as a json record together with the time it took to serialize the
+ * response. The header is sent before the body, so serialization is only
+ * in the log, and when the response is streamed, formatting is too.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+class RequestTiming {
+
+    private static final Logger log = LoggerFactory.getLogger(RequestTiming.class);
+    private static final ObjectMapper O = new ObjectMapper();
+
+    static final String HEADER = "Server-Timing";
+
+    private final long begin;
+    private volatile String trackingId;
+    private volatile Timings page;
+    private volatile long responded;
+
+    RequestTiming() {
+        this.begin = System.nanoTime();
+    }
+
+    String getTrackingId() {
+        return trackingId;
+    }
+
+    void setTrackingId(String trackingId) {
+        this.trackingId = trackingId;
+    }
+
+    void setPage(Timings page) {
+        this.page = page;
+    }
+
+    /**
+     * Add the Server-Timing header to the response
+     *
+     * @param response response without the header
+     * @return response with the header
+     */
+    Response withHeader(Response response) {
+        responded = System.nanoTime();
+        return Response.fromResponse(response)
+                .header(HEADER, serverTiming(responded - begin))
+                .build();
+    }
+
+    String serverTiming(long total) {
+        StringBuilder sb = new StringBuilder();
+        Timings timings = page;
+        if (timings != null) {
+            sb.append("queue;dur=").append(Timings.format(timings.getQueue()))
+                    .append(", sru;dur=").append(Timings.format(timings.getSruRequest()))
+                    .append(", parse;dur=").append(Timings.format(timings.getSruParse()));
+            List<Long> format = timings.getFormatNanos();
+            if (!format.isEmpty()) {
+                long max = format.get(format.size() - 1);
+                sb.append(", format;dur=").append(Timings.format(max))
+                        .append(";desc=\"min=").append(Timings.format(format.get(0)))
+                        .append(" median=").append(Timings.format(format.get(format.size() / 2)))
+                        .append(" max=").append(Timings.format(max))
+                        .append(" slowest=").append(quote(timings.getSlowestId()))
+                        .append('"');
+            }
+            sb.append(", ");
+        }
+        return sb.append("total;dur=").append(Timings.format(total)).toString();
+    }
+
+    /**
+     * Log the timing record, when the response has been written
+     *
+     * @param serialization nanoseconds spent writing the response
+     */
+    void log(long serialization) {
+        if (!log.isInfoEnabled()) {
+            return;
+        }
+        long end = System.nanoTime();
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("trackingId", trackingId);
+        record.put("total", Timings.millis(end - begin));
+        Timings timings = page;
+        if (timings != null) {
+            record.put("queue", Timings.millis(timings.getQueue()));
+            record.put("sru", Timings.millis(timings.getSruRequest()));
+            record.put("parse", Timings.millis(timings.getSruParse()));
+            List<Long> format = timings.getFormatNanos();
+            record.put("records", format.size());
+            if (!format.isEmpty()) {
+                record.put("formatMin", Timings.millis(format.get(0)));
+                record.put("formatMedian", Timings.millis(format.get(format.size() / 2)));
+                record.put("formatMax", Timings.millis(format.get(format.size() - 1)));
+                record.put("slowestRecord", timings.getSlowestId());
+            }
+        }
+        if (responded != 0) {
+            record.put("respond", Timings.millis(responded - begin));
+        }
+        record.put("serialization", Timings.millis(serialization));
+        try {
+            log.info("timing: {}", O.writeValueAsString(record));
+        } catch (JsonProcessingException ex) {
+            log.error("Cannot log timing: " + ex.getMessage() + " for: " + trackingId);
+        }
+    }
+
+    private static String quote(String value) {
+        return String.valueOf(value).replaceAll("[\"\\\\]", "\\\\$0");
+    }
+}
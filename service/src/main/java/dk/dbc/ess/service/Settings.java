@@ -18,9 +18,18 @@
  */
 package dk.dbc.ess.service;
 
+import io.dropwizard.util.Duration;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
+import javax.validation.Valid;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 /**
@@ -36,6 +45,15 @@ public class Settings {
         return metaProxyUrl;
     }
 
+    /**
+     * Metaproxy endpoints to balance load over
+     *
+     * @return list of urls (space or comma separated in the configuration)
+     */
+    public List<String> getMetaProxyUrls() {
+        return urls(metaProxyUrl);
+    }
+
     public void setMetaProxyUrl(String metaProxyUrl) {
         this.metaProxyUrl = metaProxyUrl;
     }
@@ -47,10 +65,26 @@ public class Settings {
         return openFormatUrl;
     }
 
+    /**
+     * OpenFormat endpoints to balance load over
+     *
+     * @return list of urls (space or comma separated in the configuration)
+     */
+    public List<String> getOpenFormatUrls() {
+        return urls(openFormatUrl);
+    }
+
     public void setOpenFormatUrl(String openFormatUrl) {
         this.openFormatUrl = openFormatUrl;
     }
 
+    private static List<String> urls(String urls) {
+        return Arrays.stream(urls.split("[ ,]+"))
+                .filter(s -> !s.isEmpty())
+                .distinct()
+                .collect(Collectors.toList());
+    }
+
     @NotNull
     private String bases;
 
@@ -75,6 +109,436 @@ public class Settings {
         this.maxPageSize = maxPageSize;
     }
 
+    @NotNull
+    private Integer maxRows = 0;
+
+    /**
+     * Max number of records in one response, when larger than maxPageSize
+     * a request is split into several metaproxy requests
+     *
+     * @return max rows, 0 means maxPageSize
+     */
+    public Integer getMaxRows() {
+        return maxRows;
+    }
+
+    public void setMaxRows(Integer maxRows) {
+        this.maxRows = maxRows;
+    }
+
+    @NotNull
+    private Integer pageConcurrency = 4;
+
+    /**
+     * Max number of metaproxy requests in parallel for one response
+     *
+     * @return concurrency
+     */
+    public Integer getPageConcurrency() {
+        return pageConcurrency;
+    }
+
+    public void setPageConcurrency(Integer pageConcurrency) {
+        this.pageConcurrency = pageConcurrency;
+    }
+
+    @NotNull
+    private Duration requestTimeout = Duration.seconds(60);
+
+    /**
+     * Max time to answer a request, callers can lower it with the timeout
+     * parameter. Records not formatted by then are returned as errors
+     *
+     * @return duration, 0 for no limit
+     */
+    public Duration getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    public void setRequestTimeout(Duration requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    @NotNull
+    private Duration healthCheckInterval = Duration.seconds(5);
+
+    /**
+     * Time between runs of each health check, /howru reports the latest
+     * results
+     *
+     * @return interval
+     */
+    public Duration getHealthCheckInterval() {
+        return healthCheckInterval;
+    }
+
+    public void setHealthCheckInterval(Duration healthCheckInterval) {
+        this.healthCheckInterval = healthCheckInterval;
+    }
+
+    @NotNull
+    private Duration baseTimeout = Duration.seconds(10);
+
+    /**
+     * Time to wait for each base, when searching several bases
+     *
+     * @return timeout
+     */
+    public Duration getBaseTimeout() {
+        return baseTimeout;
+    }
+
+    public void setBaseTimeout(Duration baseTimeout) {
+        this.baseTimeout = baseTimeout;
+    }
+
+    @NotNull
+    @Min(1)
+    private Integer formatBatchSize = 1;
+
+    /**
+     * Number of records sent to OpenFormat in one request
+     *
+     * @return batch size, 1 means one request per record
+     */
+    public Integer getFormatBatchSize() {
+        return formatBatchSize;
+    }
+
+    public void setFormatBatchSize(Integer formatBatchSize) {
+        this.formatBatchSize = formatBatchSize;
+    }
+
+    private String formatCache = "";
+
+    /**
+     * Caffeine spec of the formatted record cache, maximumWeight is in
+     * bytes
+     *
+     * @return cache spec, empty means no caching
+     */
+    public String getFormatCache() {
+        return formatCache;
+    }
+
+    public void setFormatCache(String formatCache) {
+        this.formatCache = formatCache;
+    }
+
+    private Long sruCacheSize = 0L;
+
+    /**
+     * Max number of bytes of metaproxy pages to cache
+     *
+     * @return size, 0 means no caching
+     */
+    public Long getSruCacheSize() {
+        return sruCacheSize;
+    }
+
+    public void setSruCacheSize(Long sruCacheSize) {
+        this.sruCacheSize = sruCacheSize;
+    }
+
+    private Map<String, Duration> sruCacheTtl = Collections.emptyMap();
+
+    /**
+     * Time to live of cached metaproxy pages per base
+     *
+     * @return map from base to time to live
+     */
+    public Map<String, Duration> getSruCacheTtl() {
+        return sruCacheTtl;
+    }
+
+    /**
+     * Set the time to live of cached metaproxy pages per base
+     * <p>
+     * Given as a list of base=duration, where the base * is the default. A
+     * bad entry fails when the configuration is loaded.
+     *
+     * @param sruCacheTtl list of base=duration
+     * @throws IllegalArgumentException naming the bad entry
+     */
+    public void setSruCacheTtl(String sruCacheTtl) {
+        Map<String, Duration> ttl = new HashMap<>();
+        if (sruCacheTtl != null) {
+            for (String entry : sruCacheTtl.split("[ ,]+")) {
+                if (entry.isEmpty()) {
+                    continue;
+                }
+                String[] parts = entry.split("=", 2);
+                if (parts.length != 2 || parts[0].isEmpty()) {
+                    throw new IllegalArgumentException("Invalid sruCacheTtl entry: " + entry + ", expected base=duration");
+                }
+                Duration duration;
+                try {
+                    duration = Duration.parse(parts[1]);
+                } catch (IllegalArgumentException ex) {
+                    throw new IllegalArgumentException("Invalid duration in sruCacheTtl entry: " + entry, ex);
+                }
+                if (ttl.put(parts[0], duration) != null) {
+                    throw new IllegalArgumentException("Duplicate base in sruCacheTtl entry: " + entry);
+                }
+            }
+        }
+        this.sruCacheTtl = ttl;
+    }
+
+    @NotNull
+    private Boolean coalesceSearches = false;
+
+    /**
+     * Let identical concurrent searches share one metaproxy request and one
+     * set of formatting calls
+     *
+     * @return if searches are coalesced
+     */
+    public Boolean getCoalesceSearches() {
+        return coalesceSearches;
+    }
+
+    public void setCoalesceSearches(Boolean coalesceSearches) {
+        this.coalesceSearches = coalesceSearches;
+    }
+
+    @NotNull
+    private Boolean prefetchNextPage = false;
+
+    /**
+     * Fetch and format the next page in the background after serving a page
+     *
+     * @return if prefetching is enabled
+     */
+    public Boolean getPrefetchNextPage() {
+        return prefetchNextPage;
+    }
+
+    public void setPrefetchNextPage(Boolean prefetchNextPage) {
+        this.prefetchNextPage = prefetchNextPage;
+    }
+
+    @NotNull
+    private Integer prefetchBudget = 8;
+
+    /**
+     * Max number of pages being prefetched at once
+     *
+     * @return budget
+     */
+    public Integer getPrefetchBudget() {
+        return prefetchBudget;
+    }
+
+    public void setPrefetchBudget(Integer prefetchBudget) {
+        this.prefetchBudget = prefetchBudget;
+    }
+
+    @NotNull
+    private Duration prefetchTtl = Duration.seconds(30);
+
+    /**
+     * How long a prefetched page is kept
+     *
+     * @return time to live
+     */
+    public Duration getPrefetchTtl() {
+        return prefetchTtl;
+    }
+
+    public void setPrefetchTtl(Duration prefetchTtl) {
+        this.prefetchTtl = prefetchTtl;
+    }
+
+    @NotNull
+    private Boolean hedgeFormatRequests = false;
+
+    /**
+     * Send a second request to OpenFormat, when a request is slow
+     *
+     * @return if hedging is enabled
+     */
+    public Boolean getHedgeFormatRequests() {
+        return hedgeFormatRequests;
+    }
+
+    public void setHedgeFormatRequests(Boolean hedgeFormatRequests) {
+        this.hedgeFormatRequests = hedgeFormatRequests;
+    }
+
+    @NotNull
+    @DecimalMin("50.0")
+    @DecimalMax("99.99")
+    private Double hedgePercentile = 95.0;
+
+    /**
+     * Percentile of recent OpenFormat latency, after which a request is
+     * hedged
+     *
+     * @return percentile
+     */
+    public Double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    public void setHedgePercentile(Double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    @NotNull
+    @DecimalMin("0.0")
+    @DecimalMax("100.0")
+    private Double hedgeBudget = 5.0;
+
+    /**
+     * Max percentage of OpenFormat requests that are hedged
+     *
+     * @return percentage
+     */
+    public Double getHedgeBudget() {
+        return hedgeBudget;
+    }
+
+    public void setHedgeBudget(Double hedgeBudget) {
+        this.hedgeBudget = hedgeBudget;
+    }
+
+    @NotNull
+    private Boolean streamSruResponse = false;
+
+    /**
+     * Parse the sru response as a stream, starting formatting of each record
+     * as soon as it has been read
+     *
+     * @return if streaming is enabled
+     */
+    public Boolean getStreamSruResponse() {
+        return streamSruResponse;
+    }
+
+    public void setStreamSruResponse(Boolean streamSruResponse) {
+        this.streamSruResponse = streamSruResponse;
+    }
+
+    @NotNull
+    private Boolean streamEssResponse = false;
+
+    /**
+     * Write the response while records are being formatted, instead of when
+     * all records are done
+     *
+     * @return if streaming is enabled
+     */
+    public Boolean getStreamEssResponse() {
+        return streamEssResponse;
+    }
+
+    public void setStreamEssResponse(Boolean streamEssResponse) {
+        this.streamEssResponse = streamEssResponse;
+    }
+
+    @NotNull
+    private Boolean rawRecords = false;
+
+    /**
+     * Keep formatted records as serialized bytes, that are copied into the
+     * response, instead of parsing them into a DOM
+     *
+     * @return if records are kept serialized
+     */
+    public Boolean getRawRecords() {
+        return rawRecords;
+    }
+
+    public void setRawRecords(Boolean rawRecords) {
+        this.rawRecords = rawRecords;
+    }
+
+    @NotNull
+    private Boolean passthroughRecords = false;
+
+    /**
+     * When the sru response is read as a stream, send the records on to
+     * OpenFormat as they were read, instead of through a DOM
+     *
+     * @return if records are passed through
+     */
+    public Boolean getPassthroughRecords() {
+        return passthroughRecords;
+    }
+
+    public void setPassthroughRecords(Boolean passthroughRecords) {
+        this.passthroughRecords = passthroughRecords;
+    }
+
+    @Valid
+    @NotNull
+    private CircuitBreakerConfiguration circuitBreaker = new CircuitBreakerConfiguration();
+
+    /**
+     * Circuit breaker and bulkhead settings for each base
+     *
+     * @return configuration
+     */
+    public CircuitBreakerConfiguration getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public void setCircuitBreaker(CircuitBreakerConfiguration circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    @Valid
+    @NotNull
+    private LimiterConfiguration formatLimiter = new LimiterConfiguration();
+
+    /**
+     * Adaptive concurrency limit on calls to OpenFormat
+     *
+     * @return configuration
+     */
+    public LimiterConfiguration getFormatLimiter() {
+        return formatLimiter;
+    }
+
+    public void setFormatLimiter(LimiterConfiguration formatLimiter) {
+        this.formatLimiter = formatLimiter;
+    }
+
+    @Valid
+    @NotNull
+    private LimiterConfiguration sruLimiter = new LimiterConfiguration();
+
+    /**
+     * Adaptive concurrency limit on calls to metaproxy
+     *
+     * @return configuration
+     */
+    public LimiterConfiguration getSruLimiter() {
+        return sruLimiter;
+    }
+
+    public void setSruLimiter(LimiterConfiguration sruLimiter) {
+        this.sruLimiter = sruLimiter;
+    }
+
+    @Valid
+    @NotNull
+    private LoadBalancerConfiguration loadBalancer = new LoadBalancerConfiguration();
+
+    /**
+     * Load balancing over metaproxy and OpenFormat endpoints
+     *
+     * @return configuration
+     */
+    public LoadBalancerConfiguration getLoadBalancer() {
+        return loadBalancer;
+    }
+
+    public void setLoadBalancer(LoadBalancerConfiguration loadBalancer) {
+        this.loadBalancer = loadBalancer;
+    }
+
     @Override
     public String toString() {
         return "Settings{" + "metaProxyUrl=" + metaProxyUrl + ", openFormatUrl=" + openFormatUrl + ", bases=" + bases;
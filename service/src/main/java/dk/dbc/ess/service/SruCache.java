@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.dropwizard.util.Duration;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Cache of raw metaproxy result pages
+ * <p>
+ * Pages are keyed by base, query type, query, start and rows. Time to live
+ * is configured per base, a base with no (or zero) time to live is not
+ * cached. The cache is bounded by the total number of bytes.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class SruCache {
+
+    private final Map<String, Duration> ttls;
+    private final Duration defaultTtl;
+    private final long maxBytes;
+    private final Cache<Key, byte[]> cache;
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter evictions;
+
+    public SruCache(long maxBytes, Map<String, Duration> ttls, MetricRegistry metrics) {
+        this.ttls = ttls;
+        this.defaultTtl = ttls.getOrDefault("*", Duration.seconds(0));
+        this.maxBytes = maxBytes;
+        this.hits = metrics.meter(metricName("hits"));
+        this.misses = metrics.meter(metricName("misses"));
+        this.evictions = metrics.meter(metricName("evictions"));
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Key key, byte[] value) -> value.length)
+                .expireAfter(new Expiry<Key, byte[]>() {
+                    @Override
+                    public long expireAfterCreate(Key key, byte[] value, long currentTime) {
+                        return ttl(key.base).toNanoseconds();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(Key key, byte[] value, long currentTime, long currentDuration) {
+                        return ttl(key.base).toNanoseconds();
+                    }
+
+                    @Override
+                    public long expireAfterRead(Key key, byte[] value, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .removalListener((Key key, byte[] value, RemovalCause cause) -> {
+                    if (cause.wasEvicted()) {
+                        evictions.mark();
+                    }
+                })
+                .build();
+        metrics.gauge(metricName("size"), () -> (Gauge<Long>) cache::estimatedSize);
+        metrics.gauge(metricName("bytes"), () -> (Gauge<Long>) () -> cache.policy().eviction()
+                      .map(eviction -> eviction.weightedSize().orElse(0L))
+                      .orElse(0L));
+    }
+
+    private String metricName(String name) {
+        return getClass().getCanonicalName() + "#" + name;
+    }
+
+    private Duration ttl(String base) {
+        return ttls.getOrDefault(base, defaultTtl);
+    }
+
+    /**
+     * Is caching enabled for a base
+     *
+     * @param base name of base
+     * @return if pages from the base are cached
+     */
+    public boolean isCached(String base) {
+        return ttl(base).toNanoseconds() > 0;
+    }
+
+    public byte[] get(String base, String queryParam, String query, int start, int rows) {
+        byte[] page = cache.getIfPresent(new Key(base, queryParam, query, start, rows));
+        if (page == null) {
+            misses.mark();
+        } else {
+            hits.mark();
+        }
+        return page;
+    }
+
+    public void put(String base, String queryParam, String query, int start, int rows, byte[] page) {
+        cache.put(new Key(base, queryParam, query, start, rows), page);
+    }
+
+    /**
+     * Wrap a response stream, so a copy of what is read can be cached
+     *
+     * @param is response stream
+     * @return stream that keeps what has been read, up to the size of the
+     *         cache
+     */
+    public CapturingInputStream capture(InputStream is) {
+        return new CapturingInputStream(is, maxBytes);
+    }
+
+    public static class CapturingInputStream extends FilterInputStream {
+
+        private final ByteArrayOutputStream bos;
+        private final long limit;
+        private boolean overflow;
+
+        private CapturingInputStream(InputStream in, long limit) {
+            super(in);
+            this.bos = new ByteArrayOutputStream();
+            this.limit = limit;
+            this.overflow = false;
+        }
+
+        /**
+         * Content read so far
+         *
+         * @return bytes or null if the content exceeds the cache size
+         */
+        public byte[] getBytes() {
+            return overflow ? null : bos.toByteArray();
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c != -1) {
+                capture(new byte[] {(byte) c}, 0, 1);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                capture(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int read = read(buffer, 0, buffer.length);
+            return read < 0 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void capture(byte[] b, int off, int len) {
+            if (overflow) {
+                return;
+            }
+            if (bos.size() + len > limit) {
+                overflow = true;
+                bos.reset();
+                return;
+            }
+            bos.write(b, off, len);
+        }
+    }
+
+    private static final class Key {
+
+        private final String base;
+        private final String queryParam;
+        private final String query;
+        private final int start;
+        private final int rows;
+
+        private Key(String base, String queryParam, String query, int start, int rows) {
+            this.base = base;
+            this.queryParam = queryParam;
+            this.query = query;
+            this.start = start;
+            this.rows = rows;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return start == other.start &&
+                   rows == other.rows &&
+                   base.equals(other.base) &&
+                   queryParam.equals(other.queryParam) &&
+                   query.equals(other.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(base, queryParam, query, start, rows);
+        }
+    }
+}
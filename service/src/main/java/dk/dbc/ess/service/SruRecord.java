@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+/**
+ * A record from an sru response, kept serialized so it can be sent on to
+ * OpenFormat as it is
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class SruRecord {
+
+    private final byte[] data;
+    private final String controlNumber;
+
+    public SruRecord(byte[] data, String controlNumber) {
+        this.data = data;
+        this.controlNumber = controlNumber;
+    }
+
+    /**
+     * The content of recordData, as a fragment with all namespaces declared
+     *
+     * @return bytes or null if the record cannot be formatted
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Content of controlfield 001 of the marcxchange record
+     *
+     * @return id or null if none
+     */
+    public String getControlNumber() {
+        return controlNumber;
+    }
+}
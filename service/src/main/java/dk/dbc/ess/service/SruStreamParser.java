@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import dk.dbc.Pool;
+import dk.dbc.sru.sruresponse.Record;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.function.Consumer;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.stream.util.StreamReaderDelegate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streaming parser for sru searchRetrieveResponse documents
+ * <p>
+ * Each record is handed on as soon as it has been read, so only one record
+ * at a time is kept in memory.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class SruStreamParser {
+
+    private static final Logger log = LoggerFactory.getLogger(SruStreamParser.class);
+
+    static final String SRU_NS = "http://docs.oasis-open.org/ns/search-ws/sruResponse";
+
+    private static final XMLInputFactory XIF = newXMLInputFactory();
+    private static final XMLOutputFactory XOF = newXMLOutputFactory();
+
+    private static XMLInputFactory newXMLInputFactory() {
+        synchronized (XMLInputFactory.class) {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            return factory;
+        }
+    }
+
+    private static XMLOutputFactory newXMLOutputFactory() {
+        synchronized (XMLOutputFactory.class) {
+            XMLOutputFactory factory = XMLOutputFactory.newInstance();
+            factory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+            return factory;
+        }
+    }
+
+    /**
+     * Parse a searchRetrieveResponse
+     *
+     * @param is       response body
+     * @param consumer receiver of records in document order
+     * @return numberOfRecords from the response (0 if absent)
+     * @throws XMLStreamException if the document is not well formed
+     * @throws JAXBException      if a record cannot be unmarshalled
+     */
+    public static long parse(InputStream is, Consumer<Record> consumer) throws XMLStreamException, JAXBException {
+        XMLStreamReader reader = XIF.createXMLStreamReader(is);
+        try (Pool.Element<Unmarshaller> pooled = Marshalling.INSTANCE.unmarshaller()) {
+            Unmarshaller unmarshaller = pooled.value();
+            long hits = 0;
+            while (reader.hasNext()) {
+                if (reader.isStartElement() && SRU_NS.equals(reader.getNamespaceURI())) {
+                    String name = reader.getLocalName();
+                    if ("record".equals(name)) {
+                        // Leaves the reader at the event following the record
+                        consumer.accept(unmarshaller.unmarshal(reader, Record.class).getValue());
+                        continue;
+                    }
+                    if ("numberOfRecords".equals(name)) {
+                        hits = Long.parseUnsignedLong(reader.getElementText().trim());
+                    }
+                }
+                reader.next();
+            }
+            return hits;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new XMLStreamException("Interrupted while waiting for unmarshaller");
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parse a searchRetrieveResponse, keeping the records serialized
+     * <p>
+     * The content of each recordData is copied as it is read, declaring the
+     * namespaces it uses, and the id of the record is picked up on the way.
+     *
+     * @param is       response body
+     * @param consumer receiver of records in document order
+     * @return numberOfRecords from the response (0 if absent)
+     * @throws XMLStreamException if the document is not well formed
+     */
+    public static long parsePassthrough(InputStream is, Consumer<SruRecord> consumer) throws XMLStreamException {
+        XMLStreamReader reader = XIF.createXMLStreamReader(is);
+        try {
+            long hits = 0;
+            while (reader.hasNext()) {
+                if (reader.isStartElement() && SRU_NS.equals(reader.getNamespaceURI())) {
+                    String name = reader.getLocalName();
+                    if ("record".equals(name)) {
+                        consumer.accept(readRecord(reader));
+                    } else if ("numberOfRecords".equals(name)) {
+                        hits = Long.parseUnsignedLong(reader.getElementText().trim());
+                    }
+                }
+                reader.next();
+            }
+            return hits;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Read an sru record
+     *
+     * @param reader reader at the record element, it is left at the end of it
+     * @return record, without data if the content is not a single xml
+     *         escaped element
+     * @throws XMLStreamException if the document is not well formed
+     */
+    private static SruRecord readRecord(XMLStreamReader reader) throws XMLStreamException {
+        String escaping = null;
+        int content = 0;
+        byte[] data = null;
+        String controlNumber = null;
+        for (int event = reader.next() ; event != XMLStreamConstants.END_ELEMENT ; event = reader.next()) {
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            String name = SRU_NS.equals(reader.getNamespaceURI()) ? reader.getLocalName() : "";
+            if ("recordXMLEscaping".equals(name)) {
+                escaping = reader.getElementText().trim();
+            } else if ("recordData".equals(name)) {
+                for (event = reader.next() ; event != XMLStreamConstants.END_ELEMENT ; event = reader.next()) {
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        ControlNumberReader record = new ControlNumberReader(reader);
+                        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                        XMLStreamWriter writer = XOF.createXMLStreamWriter(bos, "UTF-8");
+                        XmlTools.copyElement(record, writer);
+                        writer.close();
+                        if (content++ == 0) {
+                            data = bos.toByteArray();
+                            controlNumber = record.getControlNumber();
+                        }
+                    } else if (( event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA ) && !reader.isWhiteSpace()) {
+                        content++;
+                    }
+                }
+            } else {
+                skipElement(reader);
+            }
+        }
+        if (!"xml".equals(escaping)) {
+            log.error("Expected xml escaped record in response got: " + escaping);
+            return new SruRecord(null, null);
+        }
+        if (content != 1 || data == null) {
+            log.error("Expected 1 record in response, got: " + content);
+            return new SruRecord(null, null);
+        }
+        return new SruRecord(data, controlNumber);
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        for (int depth = 1 ; depth > 0 ;) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Picks up the text of controlfield 001 of a marcxchange record, while the
+     * record is being read
+     */
+    private static class ControlNumberReader extends StreamReaderDelegate {
+
+        private int depth;
+        private StringBuilder text;
+        private String controlNumber;
+
+        private ControlNumberReader(XMLStreamReader reader) {
+            super(reader);
+            this.depth = 1;
+        }
+
+        @Override
+        public int next() throws XMLStreamException {
+            int event = super.next();
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    if (depth == 2 && controlNumber == null &&
+                        "controlfield".equals(getLocalName()) &&
+                        "001".equals(getAttributeValue(null, "tag"))) {
+                        text = new StringBuilder();
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    if (depth == 2 && text != null) {
+                        text.append(getTextCharacters(), getTextStart(), getTextLength());
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (depth == 2 && text != null) {
+                        controlNumber = text.toString();
+                        text = null;
+                    }
+                    depth--;
+                    break;
+                default:
+                    break;
+            }
+            return event;
+        }
+
+        private String getControlNumber() {
+            return controlNumber == null || controlNumber.isEmpty() ? null : controlNumber;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metrics with dimensions (tags) encoded in the name, as
+ * {@code class#name{key=value,key=value}}
+ * <p>
+ * The values often come from the caller (base, format), so each tag only
+ * gets a limited number of distinct values, after which they are reported
+ * as "other". Timers and histograms are backed by {@link HdrReservoir}.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class TaggedMetrics {
+
+    static final String OTHER = "other";
+
+    private final MetricRegistry metrics;
+    private final String prefix;
+    private final int maxValues;
+    private final ConcurrentHashMap<String, Set<String>> values;
+
+    public TaggedMetrics(MetricRegistry metrics, Class<?> owner) {
+        this(metrics, owner, 100);
+    }
+
+    TaggedMetrics(MetricRegistry metrics, Class<?> owner, int maxValues) {
+        this.metrics = metrics;
+        this.prefix = owner.getCanonicalName() + "#";
+        this.maxValues = maxValues;
+        this.values = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Timer with a high resolution reservoir
+     *
+     * @param name name of the timer
+     * @param tags key, value pairs
+     * @return timer
+     */
+    public Timer timer(String name, String... tags) {
+        return metrics.timer(name(name, tags), () -> new Timer(new HdrReservoir()));
+    }
+
+    /**
+     * Histogram with a high resolution reservoir
+     *
+     * @param name name of the histogram
+     * @param tags key, value pairs
+     * @return histogram
+     */
+    public Histogram histogram(String name, String... tags) {
+        return metrics.histogram(name(name, tags), () -> new Histogram(new HdrReservoir()));
+    }
+
+    String name(String name, String... tags) {
+        if (tags.length % 2 != 0) {
+            throw new IllegalArgumentException("Tags should be key, value pairs");
+        }
+        StringBuilder sb = new StringBuilder(prefix).append(name);
+        for (int i = 0 ; i < tags.length ; i += 2) {
+            sb.append(i == 0 ? '{' : ',')
+                    .append(tags[i])
+                    .append('=')
+                    .append(value(tags[i], tags[i + 1]));
+        }
+        if (tags.length > 0) {
+            sb.append('}');
+        }
+        return sb.toString();
+    }
+
+    private String value(String key, String value) {
+        if (value == null || value.isEmpty()) {
+            return "none";
+        }
+        value = value.replaceAll("[,={}\"\\\\\\s]", "_");
+        Set<String> seen = values.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet());
+        if (seen.contains(value)) {
+            return value;
+        }
+        if (seen.size() >= maxValues) {
+            return OTHER;
+        }
+        seen.add(value);
+        return value;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Timeouts on futures, and other delayed tasks
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class Timeouts {
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Timeouts() {
+    }
+
+    /**
+     * Run a task after a delay
+     *
+     * @param task  the task, should be short
+     * @param delay delay
+     * @param unit  unit of delay
+     * @return scheduled task
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return SCHEDULER.schedule(task, delay, unit);
+    }
+
+    /**
+     * A future that completes as the given one, or with a
+     * {@link TimeoutException} if that takes too long
+     * <p>
+     * The given future is cancelled on timeout (and when the returned future
+     * is cancelled). A value that arrives anyway is handed to abandoned, so
+     * it can be cleaned up.
+     *
+     * @param <T>       result type
+     * @param future    the future to wait for
+     * @param timeout   max time in milliseconds
+     * @param what      description for the exception message
+     * @param abandoned cleanup of a value that nobody waits for
+     * @return new future
+     */
+    public static <T> CompletableFuture<T> within(CompletableFuture<T> future, long timeout, String what, Consumer<T> abandoned) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ScheduledFuture<?> timer = SCHEDULER.schedule(() -> {
+            if (result.completeExceptionally(new TimeoutException(what + " timed out after " + timeout + "ms"))) {
+                future.cancel(true);
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        future.whenComplete((value, ex) -> {
+            timer.cancel(false);
+            if (ex != null) {
+                result.completeExceptionally(ex);
+            } else if (!result.complete(value)) {
+                abandoned.accept(value);
+            }
+        });
+        return Futures.cancelling(result, future);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the time of fetching a page went
+ * <p>
+ * Phases that run in parallel for several pages (fan out, multiple bases)
+ * are merged by taking the longest. Formatting is recorded per record, as
+ * the time from the record is handed to formatting, until it is done.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class Timings {
+
+    private long queue;
+    private long sruRequest;
+    private long sruParse;
+    private final List<Long> formatNanos;
+    private long slowestNanos;
+    private String slowestId;
+
+    public Timings() {
+        this.formatNanos = new ArrayList<>();
+    }
+
+    /**
+     * Record time waited for a formatting thread
+     *
+     * @param nanos duration
+     */
+    public synchronized void queued(long nanos) {
+        queue = Math.max(queue, nanos);
+    }
+
+    public synchronized void sruRequest(long nanos) {
+        sruRequest = Math.max(sruRequest, nanos);
+    }
+
+    public synchronized void sruParse(long nanos) {
+        sruParse = Math.max(sruParse, nanos);
+    }
+
+    /**
+     * Record the formatting time of a record
+     *
+     * @param id    remote id of the record
+     * @param nanos duration
+     */
+    public synchronized void formatted(String id, long nanos) {
+        formatNanos.add(nanos);
+        if (slowestId == null || nanos > slowestNanos) {
+            slowestNanos = nanos;
+            slowestId = id;
+        }
+    }
+
+    /**
+     * Include the timings of a page fetched in parallel with this
+     *
+     * @param other timings of the other page
+     * @return this
+     */
+    public Timings merge(Timings other) {
+        if (other == this) {
+            return this;
+        }
+        long otherQueue, otherSruRequest, otherSruParse, otherSlowestNanos;
+        String otherSlowestId;
+        List<Long> otherFormatNanos;
+        synchronized (other) {
+            otherQueue = other.queue;
+            otherSruRequest = other.sruRequest;
+            otherSruParse = other.sruParse;
+            otherFormatNanos = new ArrayList<>(other.formatNanos);
+            otherSlowestNanos = other.slowestNanos;
+            otherSlowestId = other.slowestId;
+        }
+        synchronized (this) {
+            queue = Math.max(queue, otherQueue);
+            sruRequest = Math.max(sruRequest, otherSruRequest);
+            sruParse = Math.max(sruParse, otherSruParse);
+            formatNanos.addAll(otherFormatNanos);
+            if (otherSlowestId != null && ( slowestId == null || otherSlowestNanos > slowestNanos )) {
+                slowestNanos = otherSlowestNanos;
+                slowestId = otherSlowestId;
+            }
+        }
+        return this;
+    }
+
+    public synchronized long getQueue() {
+        return queue;
+    }
+
+    public synchronized long getSruRequest() {
+        return sruRequest;
+    }
+
+    public synchronized long getSruParse() {
+        return sruParse;
+    }
+
+    /**
+     * Formatting time of records, sorted
+     *
+     * @return list of durations
+     */
+    public synchronized List<Long> getFormatNanos() {
+        List<Long> sorted = new ArrayList<>(formatNanos);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * The record that took longest to format
+     *
+     * @return remote id or null if no records were formatted
+     */
+    public synchronized String getSlowestId() {
+        return slowestId;
+    }
+
+    static double millis(long nanos) {
+        return Math.round(nanos / (double) TimeUnit.MILLISECONDS.toNanos(1) * 1000.0) / 1000.0;
+    }
+
+    static String format(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", millis(nanos));
+    }
+}
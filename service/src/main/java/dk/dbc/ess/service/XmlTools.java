@@ -26,6 +26,10 @@ import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.TransformerFactoryConfigurationError;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Element;
@@ -103,4 +107,70 @@ public class XmlTools {
         }
     }
 
+    /**
+     * Copy the element the reader is positioned at
+     * <p>
+     * The reader is left at the end of the element. Namespace declarations
+     * that are in scope, but not on the element itself, are up to the writer
+     * to repair.
+     *
+     * @param reader reader at a start element
+     * @param writer where to write the element
+     * @throws XMLStreamException if the element is not well formed or the
+     *                            writer fails
+     */
+    public static void copyElement(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+        int depth = 0;
+        for (;;) {
+            switch (reader.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    writer.writeStartElement(nonNull(reader.getPrefix()), reader.getLocalName(), nonNull(reader.getNamespaceURI()));
+                    for (int i = 0 ; i < reader.getNamespaceCount() ; i++) {
+                        String prefix = reader.getNamespacePrefix(i);
+                        if (prefix == null || prefix.isEmpty()) {
+                            writer.writeDefaultNamespace(nonNull(reader.getNamespaceURI(i)));
+                        } else {
+                            writer.writeNamespace(prefix, reader.getNamespaceURI(i));
+                        }
+                    }
+                    for (int i = 0 ; i < reader.getAttributeCount() ; i++) {
+                        String namespace = reader.getAttributeNamespace(i);
+                        if (namespace == null || namespace.isEmpty()) {
+                            writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                        } else {
+                            writer.writeAttribute(nonNull(reader.getAttributePrefix(i)), namespace, reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    writer.writeEndElement();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                case XMLStreamConstants.CDATA:
+                    writer.writeCData(reader.getText());
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    writer.writeComment(reader.getText());
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                    break;
+                default:
+                    break;
+            }
+            if (depth == 0) {
+                return;
+            }
+            reader.next();
+        }
+    }
+
+    private static String nonNull(String value) {
+        return value == null ? "" : value;
+    }
 }
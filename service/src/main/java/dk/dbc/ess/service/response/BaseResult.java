@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service.response;
+
+import javax.xml.bind.annotation.XmlAttribute;
+
+/**
+ * Outcome of the search in one base of a multi base search
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class BaseResult {
+
+    public static final String OK = "ok";
+    public static final String TIMEOUT = "timeout";
+    public static final String ERROR = "error";
+    public static final String UNAVAILABLE = "unavailable";
+
+    @XmlAttribute(name = "name", required = true)
+    public String name;
+
+    @XmlAttribute(name = "hits")
+    public Long hits;
+
+    @XmlAttribute(name = "status", required = true)
+    public String status;
+
+    public BaseResult() {
+    }
+
+    public BaseResult(String name, Long hits, String status) {
+        this.name = name;
+        this.hits = hits;
+        this.status = status;
+    }
+
+}
@@ -36,6 +36,10 @@ public class EssResponse {
     @XmlElement(required = true, namespace = NS)
     public long hits;
 
+    @XmlElementWrapper(name = "bases", required = false, namespace = NS)
+    @XmlElement(name = "base", namespace = NS)
+    public List<BaseResult> bases;
+
     @XmlElementWrapper(name = "records", required = true, namespace = NS)
     @XmlAnyElement(lax = true)
     public List<Object> records;
@@ -18,6 +18,7 @@
  */
 package dk.dbc.ess.service.response;
 
+import java.util.List;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 
@@ -34,6 +35,16 @@ public class HowRuResponse {
     @XmlElement(name = "message", required = false, nillable = true)
     public String message;
 
+    /**
+     * Milliseconds since the oldest of the checks was run, null if one has
+     * not run yet
+     */
+    @XmlElement(name = "age", required = false, nillable = true)
+    public Long age;
+
+    @XmlElement(name = "checks", required = false)
+    public List<Check> checks;
+
     public HowRuResponse() {
     }
 
@@ -42,4 +53,35 @@ public class HowRuResponse {
         this.message = this.ok ? null : error;
     }
 
+    /**
+     * Latest result of a single health check
+     */
+    public static class Check {
+
+        @XmlElement(name = "name", required = true)
+        public String name;
+
+        @XmlElement(name = "ok", required = true)
+        public boolean ok;
+
+        @XmlElement(name = "message", required = false, nillable = true)
+        public String message;
+
+        @XmlElement(name = "latency", required = true)
+        public long latency;
+
+        @XmlElement(name = "age", required = false, nillable = true)
+        public Long age;
+
+        public Check() {
+        }
+
+        public Check(String name, boolean ok, String message, long latency, Long age) {
+            this.name = name;
+            this.ok = ok;
+            this.message = message;
+            this.latency = latency;
+            this.age = age;
+        }
+    }
 }
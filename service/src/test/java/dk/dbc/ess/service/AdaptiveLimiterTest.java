@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.util.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class AdaptiveLimiterTest {
+
+    private final AtomicLong clock;
+    private final AdaptiveLimiter limiter;
+
+    public AdaptiveLimiterTest() {
+        LimiterConfiguration config = new LimiterConfiguration();
+        config.setInitialLimit(4);
+        config.setMinLimit(1);
+        config.setMaxLimit(8);
+        config.setBackoffRatio(0.5);
+        config.setRttTolerance(2.0);
+        config.setMaxWait(Duration.milliseconds(10));
+        this.clock = new AtomicLong();
+        this.limiter = new AdaptiveLimiter("test", config, new MetricRegistry(), clock::get);
+    }
+
+    @Test
+    public void testRejectsAboveLimit() throws Exception {
+        for (int i = 0 ; i < 4 ; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        assertFalse(limiter.tryAcquire());
+        assertFalse(limiter.acquire(Deadline.NONE));
+        limiter.onIgnore();
+        assertTrue(limiter.acquire(Deadline.NONE));
+        assertEquals(4, limiter.getInFlight());
+    }
+
+    @Test(timeout = 5000L)
+    public void testWaitsNoLongerThanDeadline() throws Exception {
+        LimiterConfiguration config = new LimiterConfiguration();
+        config.setInitialLimit(1);
+        config.setMaxWait(Duration.minutes(1));
+        AdaptiveLimiter slow = new AdaptiveLimiter("slow", config, new MetricRegistry(), clock::get);
+        assertTrue(slow.tryAcquire());
+        assertFalse(slow.acquire(Deadline.in(10, TimeUnit.MILLISECONDS)));
+    }
+
+    @Test
+    public void testIncreasesWhileFast() throws Exception {
+        for (int n = 0 ; n < 100 ; n++) {
+            int limit = limiter.getLimit();
+            for (int i = 0 ; i < limit ; i++) {
+                assertTrue(limiter.tryAcquire());
+            }
+            for (int i = 0 ; i < limit ; i++) {
+                limiter.onSuccess(1000);
+            }
+        }
+        assertEquals(8, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testDecreasesWhenSlowOrFailing() throws Exception {
+        clock.set(10000);
+        assertTrue(limiter.tryAcquire());
+        limiter.onSuccess(1000);
+        assertTrue(limiter.tryAcquire());
+        limiter.onSuccess(5000);
+        assertEquals(2, limiter.getLimit());
+        clock.set(20000);
+        assertTrue(limiter.tryAcquire());
+        limiter.onDropped(1000);
+        assertEquals(1, limiter.getLimit());
+        clock.set(30000);
+        assertTrue(limiter.tryAcquire());
+        limiter.onDropped(1000);
+        assertEquals(1, limiter.getLimit());
+    }
+
+    @Test
+    public void testDecreasesOncePerRoundTrip() throws Exception {
+        clock.set(10000);
+        assertTrue(limiter.tryAcquire());
+        limiter.onSuccess(1000);
+        for (int i = 0 ; i < 3 ; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        // Three calls started together, and all ended slow
+        clock.set(20000);
+        limiter.onSuccess(5000);
+        limiter.onSuccess(5000);
+        limiter.onDropped(5000);
+        assertEquals(2, limiter.getLimit());
+        // A call started after the decrease
+        clock.set(30000);
+        assertTrue(limiter.tryAcquire());
+        limiter.onSuccess(5000);
+        assertEquals(1, limiter.getLimit());
+    }
+}
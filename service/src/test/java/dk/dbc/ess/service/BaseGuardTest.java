@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import java.util.concurrent.CompletableFuture;
+import javax.ws.rs.core.Response;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class BaseGuardTest {
+
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final BaseGuard guard;
+
+    public BaseGuardTest() {
+        CircuitBreakerConfiguration config = new CircuitBreakerConfiguration();
+        config.setWindowSize(4);
+        config.setMinimumCalls(4);
+        config.setMaxConcurrentCalls(2);
+        this.guard = new BaseGuard("base", config, metrics);
+    }
+
+    @Test
+    public void testCancelledCallsAreNotFailures() throws Exception {
+        for (int i = 0 ; i < 10 ; i++) {
+            CompletableFuture<Response> call = new CompletableFuture<>();
+            guard.call(() -> call).cancel(true);
+            assertTrue(call.isCancelled());
+        }
+        assertEquals("CLOSED", gauge("state"));
+        assertEquals(0, gauge("inFlight"));
+    }
+
+    @Test
+    public void testFailedCallsOpen() throws Exception {
+        for (int i = 0 ; i < 4 ; i++) {
+            CompletableFuture<Response> call = new CompletableFuture<>();
+            guard.call(() -> call);
+            call.completeExceptionally(new IllegalStateException("down"));
+        }
+        assertEquals("OPEN", gauge("state"));
+        assertEquals(0, gauge("inFlight"));
+    }
+
+    private Object gauge(String name) {
+        Gauge<?> gauge = metrics.getGauges().get(BaseGuard.class.getCanonicalName() + "#base." + name);
+        return gauge.getValue();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.MetricRegistry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class BoundedExecutorTest {
+
+    @Test(timeout = 5000L)
+    public void testRejectWhenSaturated() throws Exception {
+        ExecutorConfiguration config = new ExecutorConfiguration();
+        config.setMaxThreads(1);
+        config.setQueueSize(1);
+        MetricRegistry metrics = new MetricRegistry();
+        BoundedExecutor executor = new BoundedExecutor("test", config, metrics);
+        try {
+            CountDownLatch latch = new CountDownLatch(1);
+            Future<Boolean> running = executor.submit(() -> latch.await(5, TimeUnit.SECONDS));
+            Future<Boolean> queued = executor.submit(() -> true);
+            try {
+                executor.submit(() -> true);
+                fail("Expected rejection");
+            } catch (RejectedExecutionException ex) {
+            }
+            assertEquals(1, metrics.getMeters().get(BoundedExecutor.class.getCanonicalName() + "#test.rejections").getCount());
+            assertEquals(1, metrics.getGauges().get(BoundedExecutor.class.getCanonicalName() + "#test.queueDepth").getValue());
+            latch.countDown();
+            assertTrue(running.get());
+            assertTrue(queued.get());
+            assertEquals(2, metrics.getTimers().get(BoundedExecutor.class.getCanonicalName() + "#test.queueWait").getCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void testStartThreadsBeforeQueueing() throws Exception {
+        ExecutorConfiguration config = new ExecutorConfiguration();
+        config.setMaxThreads(4);
+        config.setQueueSize(10);
+        MetricRegistry metrics = new MetricRegistry();
+        BoundedExecutor executor = new BoundedExecutor("test", config, metrics);
+        try {
+            CountDownLatch started = new CountDownLatch(4);
+            CountDownLatch latch = new CountDownLatch(1);
+            for (int i = 0 ; i < 4 ; i++) {
+                executor.submit(() -> {
+                    started.countDown();
+                    return latch.await(5, TimeUnit.SECONDS);
+                });
+            }
+            started.await();
+            assertEquals(4, executor.getPoolSize());
+            assertEquals(0, metrics.getGauges().get(BoundedExecutor.class.getCanonicalName() + "#test.queueDepth").getValue());
+            latch.countDown();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void testExecuteExceptionIsUncaught() throws Exception {
+        ExecutorConfiguration config = new ExecutorConfiguration();
+        config.setMaxThreads(1);
+        config.setQueueSize(1);
+        MetricRegistry metrics = new MetricRegistry();
+        BoundedExecutor executor = new BoundedExecutor("test", config, metrics);
+        try {
+            CompletableFuture<Throwable> uncaught = new CompletableFuture<>();
+            RuntimeException failure = new RuntimeException("failed");
+            executor.execute(() -> {
+                Thread.currentThread().setUncaughtExceptionHandler((t, ex) -> uncaught.complete(ex));
+                throw failure;
+            });
+            assertSame(failure, uncaught.get());
+            assertEquals(1, metrics.getTimers().get(BoundedExecutor.class.getCanonicalName() + "#test.queueWait").getCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import io.dropwizard.util.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class CircuitBreakerTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final CircuitBreaker breaker;
+
+    public CircuitBreakerTest() {
+        CircuitBreakerConfiguration config = new CircuitBreakerConfiguration();
+        config.setFailureRateThreshold(50);
+        config.setSlowCallThreshold(Duration.seconds(1));
+        config.setWindowSize(4);
+        config.setMinimumCalls(4);
+        config.setOpenDuration(Duration.seconds(10));
+        config.setHalfOpenCalls(2);
+        this.breaker = new CircuitBreaker(config, now::get);
+    }
+
+    @Test
+    public void testOpensOnFailureRate() throws Exception {
+        call(true);
+        call(false);
+        call(true);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        call(false);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testSlowCallsCountAsFailures() throws Exception {
+        for (int i = 0 ; i < 4 ; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onResult(true, Duration.seconds(2).toNanoseconds());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testWindowForgetsOldCalls() throws Exception {
+        call(false);
+        for (int i = 0 ; i < 6 ; i++) {
+            call(true);
+        }
+        call(false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testHalfOpenCloses() throws Exception {
+        open();
+        now.addAndGet(Duration.seconds(10).toNanoseconds());
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onResult(true, 0);
+        breaker.onResult(true, 0);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testHalfOpenReopens() throws Exception {
+        open();
+        now.addAndGet(Duration.seconds(10).toNanoseconds());
+        assertTrue(breaker.tryAcquire());
+        breaker.onResult(false, 0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testIgnoredTrialIsGivenBack() throws Exception {
+        open();
+        now.addAndGet(Duration.seconds(10).toNanoseconds());
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        breaker.onIgnore();
+        breaker.onResult(true, 0);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        breaker.onResult(true, 0);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    private void open() {
+        for (int i = 0 ; i < 4 ; i++) {
+            call(false);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    private void call(boolean success) {
+        assertTrue(breaker.tryAcquire());
+        breaker.onResult(success, 0);
+    }
+}
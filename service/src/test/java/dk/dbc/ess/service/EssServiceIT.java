@@ -18,6 +18,7 @@ import javax.ws.rs.client.Client;
 import javax.ws.rs.core.Response;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executors;
 import java.util.function.Supplier;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
@@ -41,6 +42,9 @@ public class EssServiceIT {
     public WireMockRule wireMockRule = ((Supplier<WireMockRule>)()-> {
         WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort());
         wireMockRule.start();
+        // Health checks probe both services from startup
+        wireMockRule.stubFor(get(urlEqualTo("/")).willReturn(aResponse().withStatus(200)));
+        wireMockRule.stubFor(get(urlEqualTo("/?HowRU")).willReturn(aResponse().withStatus(200)));
         return wireMockRule;
     }).get();
 
@@ -55,7 +59,7 @@ public class EssServiceIT {
         client = new JerseyClientBuilder(dropWizzardRule.getEnvironment())
                 .using(conf.getJerseyClient()).build(UUID.randomUUID().toString() ).property(ClientProperties.READ_TIMEOUT,readTimeout);
 
-        essService = new EssService(conf.getSettings(), dropWizzardRule.getEnvironment().metrics(), client );
+        essService = new EssService(conf.getSettings(), dropWizzardRule.getEnvironment().metrics(), client, client, Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
     }
 
     @Test
@@ -65,7 +69,7 @@ public class EssServiceIT {
                         .withStatus(200)
                         .withHeader("Content-Type","text/xml")
                         .withBodyFile("base_bibsys_horse_response.xml")));
-        Response result = essService.requestSru("bibsys", "query", "horse", 1, 1);
+        Response result = essService.requestSru("bibsys", "query", "horse", 1, 1, Deadline.NONE).get();
         assertEquals(200, result.getStatus());
     }
 
@@ -76,7 +80,7 @@ public class EssServiceIT {
                         .withStatus(500)
                         .withBody("")));
 
-        Response result = essService.requestSru("bibsys", "query", "horse", 1, 1);
+        Response result = essService.requestSru("bibsys", "query", "horse", 1, 1, Deadline.NONE).get();
         assertEquals(500, result.getStatus());
     }
 
@@ -86,10 +90,33 @@ public class EssServiceIT {
                 .willReturn(aResponse()
                         .withStatus(404)));
 
-        Response result = essService.requestSru("bibsys", "query", "dog", 1, 1);
+        Response result = essService.requestSru("bibsys", "query", "dog", 1, 1, Deadline.NONE).get();
         assertEquals(404, result.getStatus());
     }
 
+    @Test
+    public void prometheusMetricsTest() throws Exception {
+        stubFor(get(urlMatching("/bibsys.*"))
+                .willReturn(aResponse()
+                        .withStatus(500)
+                        .withBody("")));
+        Response response = client.target(
+                String.format("http://localhost:%d/api/rpn/?base=bibsys&query=horse&rows=1&format=netpunkt_standard", dropWizzardRule.getLocalPort()))
+                .request()
+                .get();
+        assertEquals(500, response.getStatus());
+
+        Response metrics = client.target(
+                String.format("http://localhost:%d/prometheus", dropWizzardRule.getAdminPort()))
+                .request()
+                .get();
+        assertEquals(200, metrics.getStatus());
+        String text = metrics.readEntity(String.class);
+        assertTrue(text, text.contains("# TYPE dk_dbc_ess_service_EssService_sruRequest_seconds summary\n"));
+        assertTrue(text, text.contains("dk_dbc_ess_service_EssService_sruRequest_seconds_count{base=\"bibsys\",outcome=\"500\"} 1\n"));
+        assertTrue(text, text.contains("dk_dbc_ess_service_EssService_request_seconds_count{base=\"bibsys\",query=\"rpn\",format=\"netpunkt_standard\",outcome=\"500\"} 1\n"));
+    }
+
     @Test
     public void bibsysRespondingOKTest() throws Exception {
         // Stubbing request to base
@@ -114,6 +141,8 @@ public class EssServiceIT {
                 .get();
         EssResponse r = response.readEntity(EssResponse.class);
         assertEquals(200, response.getStatus());
+        String timing = response.getHeaderString("Server-Timing");
+        assertTrue(timing, timing.contains("format;dur="));
         assertEquals(5800,r.hits);
         assertEquals(1,r.records.size());
         Element e = (Element)r.records.get(0);
@@ -557,15 +586,13 @@ public class EssServiceIT {
                         .withStatus(200)
                         .withBody("Gr8")));
 
-        Response response = client.target(
-                String.format("http://localhost:%d/api/howru", dropWizzardRule.getLocalPort()))
-                .request()
-                .get();
+        Response response = howru(System.currentTimeMillis());
         assertEquals(200, response.getStatus());
         HowRuResponse result = response.readEntity(HowRuResponse.class);
 
         assertTrue(result.ok);
         assertEquals(null, result.message);
+        assertEquals(2, result.checks.size());
 
     }
 
@@ -604,10 +631,7 @@ public class EssServiceIT {
 
 
     private void checkHealthCheck() {
-        Response response = client.target(
-                String.format("http://localhost:%d/api/howru", dropWizzardRule.getLocalPort()))
-                .request()
-                .get();
+        Response response = howru(System.currentTimeMillis());
 
         HowRuResponse result = response.readEntity(HowRuResponse.class);
 
@@ -616,5 +640,31 @@ public class EssServiceIT {
         assertEquals("downstream error - check healthchecks on admin url", result.message);
     }
 
-
+    /**
+     * Call /howru until it reports health checks that were run after a time
+     *
+     * @param since time in milliseconds, typically when the stubs were set up
+     * @return response
+     */
+    private Response howru(long since) {
+        long timeout = System.currentTimeMillis() + 5000;
+        for (;;) {
+            // The age is measured after this, so checkedAt is at least before - age
+            long before = System.currentTimeMillis();
+            Response response = client.target(
+                    String.format("http://localhost:%d/api/howru", dropWizzardRule.getLocalPort()))
+                    .request()
+                    .get();
+            response.bufferEntity();
+            Long age = response.readEntity(HowRuResponse.class).age;
+            if (age != null && before - age > since || System.currentTimeMillis() > timeout) {
+                return response;
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
 }
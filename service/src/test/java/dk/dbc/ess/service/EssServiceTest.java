@@ -18,30 +18,44 @@
  */
 package dk.dbc.ess.service;
 
+import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
+import dk.dbc.ess.service.response.BaseResult;
 import dk.dbc.ess.service.response.EssResponse;
 import dk.dbc.sru.sruresponse.SearchRetrieveResponse;
 import dk.dbc.xmldiff.XmlDiff;
 import dk.dbc.xmldiff.XmlDiffTextWriter;
 import dk.dbc.xmldiff.XmlDiffWriter;
+import io.dropwizard.util.Duration;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.net.ServerSocket;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.xpath.XPathExpressionException;
 
+import org.glassfish.jersey.client.ClientProperties;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.stubbing.OngoingStubbing;
 import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
@@ -79,33 +93,411 @@ public class EssServiceTest {
     public void testCQLRequestSuccess() throws Exception {
         EssService essService = mockService("base", "format", "<foo/>", "<bar/>");
         doReturn(readXMLObject(SearchRetrieveResponse.class, "/sru/response.xml")).when(essService).responseSru(any(Response.class));
-        doReturn(responseOk).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt());
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
 
-        Response resp = essService.requestCQL("base", "", 0, 0, "format", "T");
+        AsyncResponse async = mock(AsyncResponse.class);
+        essService.requestCQL(async, "base", "", 0, 0, "format", "T", null);
+        Response resp = resumed(async);
         EssResponse entity = (EssResponse) resp.getEntity();
         boolean equivalent = compare("/sru/expected_success.xml", writeXmlObject(entity));
         assertTrue("Documents are expected to be equivalent: ", equivalent);
     }
 
+    @Test
+    public void testServerTiming() throws Exception {
+        EssService essService = mockService("base", "format", "<foo/>", "<bar/>");
+        doReturn(readXMLObject(SearchRetrieveResponse.class, "/sru/response.xml")).when(essService).responseSru(any(Response.class));
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+
+        AsyncResponse async = mock(AsyncResponse.class);
+        essService.requestCQL(async, "base", "", 0, 0, "format", "T", null);
+        Response resp = resumed(async);
+        assertEquals(200, resp.getStatus());
+        String timing = resp.getHeaderString("Server-Timing");
+        String dur = "dur=\\d+\\.\\d{3}";
+        assertTrue(timing, timing.matches("queue;" + dur + ", sru;" + dur + ", parse;" + dur +
+                                          ", format;" + dur + ";desc=\"min=[0-9.]+ median=[0-9.]+ max=[0-9.]+ slowest=base:[^\"]+\"" +
+                                          ", total;" + dur));
+    }
+
     @Test
     public void testRPNRequestSuccess() throws Exception {
         EssService essService = mockService("base", "format", "<foo/>", "<bar/>");
         doReturn(readXMLObject(SearchRetrieveResponse.class, "/sru/response.xml")).when(essService).responseSru(any(Response.class));
-        doReturn(responseOk).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt());
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
 
-        Response resp = essService.requestRPN("base", "", 0, 0, "format", "T");
+        AsyncResponse async = mock(AsyncResponse.class);
+        essService.requestRPN(async, "base", "", 0, 0, "format", "T", null);
+        Response resp = resumed(async);
         EssResponse entity = (EssResponse) resp.getEntity();
         boolean equivalent = compare("/sru/expected_success.xml", writeXmlObject(entity));
         assertTrue("Documents are expected to be equivalent: ", equivalent);
     }
 
+    @Test
+    public void testStreamingRequestSuccess() throws Exception {
+        EssService essService = mockService("base", "format", "<foo/>", "<bar/>");
+        essService.streamSruResponse = true;
+        doReturn(getClass().getResourceAsStream("/sru/response.xml")).when(responseOk).readEntity(InputStream.class);
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+
+        AsyncResponse async = mock(AsyncResponse.class);
+        essService.requestCQL(async, "base", "", 0, 0, "format", "T", null);
+        Response resp = resumed(async);
+        EssResponse entity = (EssResponse) resp.getEntity();
+        boolean equivalent = compare("/sru/expected_success.xml", writeXmlObject(entity));
+        assertTrue("Documents are expected to be equivalent: ", equivalent);
+        verify(essService, never()).responseSru(any(Response.class));
+    }
+
+    @Test
+    public void testStreamingOutputSuccess() throws Exception {
+        EssService essService = mockService("base", "format", "<foo/>", "<bar/>");
+        essService.streamEssResponse = true;
+        doReturn(readXMLObject(SearchRetrieveResponse.class, "/sru/response.xml")).when(essService).responseSru(any(Response.class));
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+
+        AsyncResponse async = mock(AsyncResponse.class);
+        essService.requestCQL(async, "base", "", 0, 0, "format", "T", null);
+        Response resp = resumed(async);
+        StreamingOutput entity = (StreamingOutput) resp.getEntity();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        entity.write(bos);
+        boolean equivalent = compare("/sru/expected_success.xml", new String(bos.toByteArray(), StandardCharsets.UTF_8));
+        assertTrue("Documents are expected to be equivalent: ", equivalent);
+    }
+
+    @Test(timeout = 5000L)
+    public void testStreamingOutputOnResponseExecutor() throws Exception {
+        EssService essService = mockService("base", "format", "<foo/>", "<bar/>");
+        essService.streamEssResponse = true;
+        ExecutorConfiguration config = new ExecutorConfiguration();
+        config.setMaxThreads(1);
+        essService.responseExecutor = new BoundedExecutor("responses", config, new MetricRegistry());
+        doReturn(readXMLObject(SearchRetrieveResponse.class, "/sru/response.xml")).when(essService).responseSru(any(Response.class));
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+
+        try {
+            AsyncResponse async = mock(AsyncResponse.class);
+            CompletableFuture<String> resumedBy = new CompletableFuture<>();
+            when(async.resume(any(Object.class))).then(i -> resumedBy.complete(Thread.currentThread().getName()));
+            essService.requestCQL(async, "base", "", 0, 0, "format", "T", null);
+            assertEquals("responses-1", resumedBy.get());
+        } finally {
+            essService.responseExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void testRawRecords() throws Exception {
+        EssService essService = mockService("base", "format", "<foo/>", "<bar/>");
+        essService.rawRecords = true;
+        when(essService.formatting.formattingCall(any(Element.class), anyString(), anyString(), anyString(), any(Deadline.class)))
+                .then(i -> (Callable<FormattedRecord>) () -> FormattedRecord.of("<foo xmlns=\"\"/>".getBytes(StandardCharsets.UTF_8)))
+                .then(i -> (Callable<FormattedRecord>) () -> FormattedRecord.of("<bar xmlns=\"\"/>".getBytes(StandardCharsets.UTF_8)));
+        doReturn(readXMLObject(SearchRetrieveResponse.class, "/sru/response.xml")).when(essService).responseSru(any(Response.class));
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+
+        AsyncResponse async = mock(AsyncResponse.class);
+        essService.requestCQL(async, "base", "", 0, 0, "format", "T", null);
+        ArgumentCaptor<Object> response = ArgumentCaptor.forClass(Object.class);
+        verify(async, timeout(5000)).resume(response.capture());
+        StreamingOutput entity = (StreamingOutput) ( (Response) response.getValue() ).getEntity();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        entity.write(bos);
+        boolean equivalent = compare("/sru/expected_success.xml", new String(bos.toByteArray(), StandardCharsets.UTF_8));
+        assertTrue("Documents are expected to be equivalent: ", equivalent);
+    }
+
+    @Test
+    public void testSruCacheHit() throws Exception {
+        EssService essService = mockService("base", "format", "<foo/>", "<bar/>", "<foo/>", "<bar/>");
+        testSruCacheHit(essService);
+    }
+
+    @Test
+    public void testSruCacheHitStreaming() throws Exception {
+        EssService essService = mockService("base", "format", "<foo/>", "<bar/>", "<foo/>", "<bar/>");
+        essService.streamSruResponse = true;
+        testSruCacheHit(essService);
+    }
+
+    private void testSruCacheHit(EssService essService) throws Exception {
+        essService.sruCache = new SruCache(1000000, Collections.singletonMap("*", Duration.minutes(1)), new MetricRegistry());
+        doReturn(getClass().getResourceAsStream("/sru/response.xml")).when(responseOk).readEntity(InputStream.class);
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+
+        for (int i = 0 ; i < 2 ; i++) {
+            AsyncResponse async = mock(AsyncResponse.class);
+            essService.requestCQL(async, "base", "", 0, 0, "format", "T", null);
+            Response resp = resumed(async);
+            EssResponse entity = (EssResponse) resp.getEntity();
+            boolean equivalent = compare("/sru/expected_success.xml", writeXmlObject(entity));
+            assertTrue("Documents are expected to be equivalent: ", equivalent);
+        }
+        verify(essService, times(1)).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+    }
+
+    @Test
+    public void testCoalescedRequests() throws Exception {
+        EssService essService = mockService("base", "format", "<foo/>", "<bar/>");
+        essService.coalesceSearches = true;
+        essService.flights = new ConcurrentHashMap<>();
+        CompletableFuture<Response> sru = new CompletableFuture<>();
+        doReturn(readXMLObject(SearchRetrieveResponse.class, "/sru/response.xml")).when(essService).responseSru(any(Response.class));
+        doReturn(sru).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+
+        AsyncResponse async1 = mock(AsyncResponse.class);
+        essService.requestCQL(async1, "base", "", 0, 0, "format", "T", null);
+        AsyncResponse async2 = mock(AsyncResponse.class);
+        essService.requestCQL(async2, "base", "", 0, 0, "format", "U", null);
+        sru.complete(responseOk);
+
+        EssResponse entity1 = (EssResponse) resumed(async1).getEntity();
+        EssResponse entity2 = (EssResponse) resumed(async2).getEntity();
+        assertTrue("Documents are expected to be equivalent: ", compare("/sru/expected_success.xml", writeXmlObject(entity1)));
+        assertEquals("U", entity2.trackingId);
+        assertEquals(entity1.records.size(), entity2.records.size());
+        assertNotSame(entity1.records.get(0), entity2.records.get(0));
+        verify(essService, times(1)).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+        assertTrue(essService.flights.isEmpty());
+    }
+
+    @Test
+    public void testPrefetchNextPage() throws Exception {
+        EssService essService = mockService("base", "format", "<foo/>", "<bar/>");
+        essService.maxPageSize = 2;
+        essService.prefetcher = new Prefetcher(1, Duration.minutes(1), essService.executor, new MetricRegistry());
+        doReturn(readXMLObject(SearchRetrieveResponse.class, "/sru/response.xml")).when(essService).responseSru(any(Response.class));
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+
+        AsyncResponse async1 = mock(AsyncResponse.class);
+        essService.requestCQL(async1, "base", "", 1, 2, "format", "T", null);
+        assertEquals(200, resumed(async1).getStatus());
+        verify(essService, times(1)).requestSru(anyString(), anyString(), anyString(), eq(3), eq(2), any(Deadline.class));
+
+        // The prefetched page is formatted on the prefetcher's threads
+        AsyncResponse async2 = mock(AsyncResponse.class);
+        essService.requestCQL(async2, "base", "", 3, 2, "format", "U", null);
+        ArgumentCaptor<Object> response = ArgumentCaptor.forClass(Object.class);
+        verify(async2, timeout(5000)).resume(response.capture());
+        EssResponse entity = (EssResponse) ( (Response) response.getValue() ).getEntity();
+        assertEquals("U", entity.trackingId);
+        assertEquals(2, entity.records.size());
+        verify(essService, times(1)).requestSru(anyString(), anyString(), anyString(), eq(3), eq(2), any(Deadline.class));
+        verify(essService, timeout(5000).times(1)).requestSru(anyString(), anyString(), anyString(), eq(5), eq(2), any(Deadline.class));
+    }
+
+    @Test
+    public void testDeepPaging() throws Exception {
+        EssService essService = mockService("base", "format", "<foo/>", "<bar/>");
+        essService.maxPageSize = 2;
+        essService.maxRows = 10;
+        essService.pageConcurrency = 2;
+        doReturn(readXMLObject(SearchRetrieveResponse.class, "/sru/response.xml")).when(essService).responseSru(any(Response.class));
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+
+        AsyncResponse async = mock(AsyncResponse.class);
+        essService.requestCQL(async, "base", "", 1, 8, "format", "T", null);
+        Response resp = resumed(async);
+        EssResponse entity = (EssResponse) resp.getEntity();
+        assertEquals(5, entity.hits);
+        assertEquals(6, entity.records.size());
+        verify(essService).requestSru(anyString(), anyString(), anyString(), eq(1), eq(2), any(Deadline.class));
+        verify(essService).requestSru(anyString(), anyString(), anyString(), eq(3), eq(2), any(Deadline.class));
+        verify(essService).requestSru(anyString(), anyString(), anyString(), eq(5), eq(2), any(Deadline.class));
+        verify(essService, never()).requestSru(anyString(), anyString(), anyString(), eq(7), anyInt(), any(Deadline.class));
+    }
+
+    @Test
+    public void testDefaultRows() throws Exception {
+        EssService essService = mockService("base", "format", "<foo/>", "<bar/>");
+        essService.maxPageSize = 2;
+        essService.maxRows = 10;
+        doReturn(readXMLObject(SearchRetrieveResponse.class, "/sru/response.xml")).when(essService).responseSru(any(Response.class));
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+
+        AsyncResponse async = mock(AsyncResponse.class);
+        essService.requestCQL(async, "base", "", 1, null, "format", "T", null);
+        assertEquals(200, resumed(async).getStatus());
+        verify(essService, times(1)).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+        verify(essService).requestSru(anyString(), anyString(), anyString(), eq(1), eq(2), any(Deadline.class));
+    }
+
+    @Test
+    public void testMultiBaseTimeout() throws Exception {
+        EssService essService = mockService("base,slow", "format", "<foo/>", "<bar/>");
+        essService.baseTimeout = 100;
+        doReturn(readXMLObject(SearchRetrieveResponse.class, "/sru/response.xml")).when(essService).responseSru(any(Response.class));
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(eq("base"), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+        doReturn(new CompletableFuture<>()).when(essService).requestSru(eq("slow"), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+
+        AsyncResponse async = mock(AsyncResponse.class);
+        essService.requestCQL(async, "base,slow", "", 0, 0, "format", "T", null);
+        ArgumentCaptor<Object> response = ArgumentCaptor.forClass(Object.class);
+        verify(async, timeout(5000)).resume(response.capture());
+        EssResponse entity = (EssResponse) ( (Response) response.getValue() ).getEntity();
+        assertEquals(5, entity.hits);
+        assertEquals(2, entity.records.size());
+        assertEquals(2, entity.bases.size());
+        assertEquals("base", entity.bases.get(0).name);
+        assertEquals(BaseResult.OK, entity.bases.get(0).status);
+        assertEquals(Long.valueOf(5), entity.bases.get(0).hits);
+        assertEquals("slow", entity.bases.get(1).name);
+        assertEquals(BaseResult.TIMEOUT, entity.bases.get(1).status);
+        assertNull(entity.bases.get(1).hits);
+    }
+
+    @Test
+    public void testDeadlineSearch() throws Exception {
+        EssService essService = mockService("base", "format", "<foo/>", "<bar/>");
+        doCallRealMethod().when(essService).gatewayTimeout(anyString());
+        doReturn(new CompletableFuture<>()).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+
+        AsyncResponse async = mock(AsyncResponse.class);
+        essService.requestCQL(async, "base", "", 0, 0, "format", "T", 100L);
+        ArgumentCaptor<Object> response = ArgumentCaptor.forClass(Object.class);
+        verify(async, timeout(5000)).resume(response.capture());
+        assertEquals(504, ( (Response) response.getValue() ).getStatus());
+    }
+
+    @Test
+    public void testDeadlineFormatting() throws Exception {
+        EssService essService = mockService("base", "format", "<foo/>", "<bar/>");
+        essService.executor = Executors.newFixedThreadPool(2);
+        when(essService.formatting.formattingCall(any(Element.class), anyString(), anyString(), anyString(), any(Deadline.class)))
+                .then(i -> (Callable<FormattedRecord>) () -> FormattedRecord.of(stringToXMLObject("<foo/>")))
+                .then(i -> (Callable<FormattedRecord>) () -> {
+                    Thread.sleep(60_000L);
+                    return FormattedRecord.of(stringToXMLObject("<bar/>"));
+                });
+        doReturn(readXMLObject(SearchRetrieveResponse.class, "/sru/response.xml")).when(essService).responseSru(any(Response.class));
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+
+        try {
+            AsyncResponse async = mock(AsyncResponse.class);
+            essService.requestCQL(async, "base", "", 0, 0, "format", "T", 200L);
+            ArgumentCaptor<Object> response = ArgumentCaptor.forClass(Object.class);
+            verify(async, timeout(5000)).resume(response.capture());
+            EssResponse entity = (EssResponse) ( (Response) response.getValue() ).getEntity();
+            assertEquals(2, entity.records.size());
+            assertEquals("foo", ( (Element) entity.records.get(0) ).getLocalName());
+            assertEquals("error", ( (Element) entity.records.get(1) ).getLocalName());
+            assertEquals(Formatting.DEADLINE_EXCEEDED, ( (Element) entity.records.get(1) ).getTextContent().trim());
+        } finally {
+            essService.executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void testDeadlineFormattingOnResponseExecutor() throws Exception {
+        EssService essService = mockService("base", "format", "<foo/>");
+        essService.executor = Executors.newFixedThreadPool(1);
+        ExecutorConfiguration config = new ExecutorConfiguration();
+        config.setMaxThreads(1);
+        essService.responseExecutor = new BoundedExecutor("responses", config, new MetricRegistry());
+        when(essService.formatting.formattingCall(any(Element.class), anyString(), anyString(), anyString(), any(Deadline.class)))
+                .then(i -> (Callable<FormattedRecord>) () -> {
+                    Thread.sleep(60_000L);
+                    return FormattedRecord.of(stringToXMLObject("<foo/>"));
+                });
+        doReturn(readXMLObject(SearchRetrieveResponse.class, "/sru/response.xml")).when(essService).responseSru(any(Response.class));
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+
+        try {
+            AsyncResponse async = mock(AsyncResponse.class);
+            CompletableFuture<String> resumedBy = new CompletableFuture<>();
+            when(async.resume(any(Object.class))).then(i -> resumedBy.complete(Thread.currentThread().getName()));
+            essService.requestCQL(async, "base", "", 0, 0, "format", "T", 200L);
+            assertEquals("responses-1", resumedBy.get());
+        } finally {
+            essService.executor.shutdownNow();
+            essService.responseExecutor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSruErrorClosesResponse() throws Exception {
+        EssService essService = mockService("base", "format", "<foo/>");
+        doReturn(CompletableFuture.completedFuture(responseError)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+
+        AsyncResponse async = mock(AsyncResponse.class);
+        essService.requestCQL(async, "base", "", 0, 0, "format", "T", null);
+        Response resp = resumed(async);
+        assertEquals(500, resp.getStatus());
+        verify(responseError).close();
+    }
+
+    @Test
+    public void testRequestSruBadQuery() throws Exception {
+        EssService essService = mockService("base", "format", "<foo/>");
+        essService.client = ClientBuilder.newClient();
+        essService.sruEndpoints = new LoadBalancer("sru", Collections.singletonList("http://localhost:1/"), new LoadBalancerConfiguration(), new MetricRegistry());
+        doCallRealMethod().when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+
+        try {
+            CompletableFuture<Response> future = essService.requestSru("base", "query", "{horse", 1, 1, Deadline.NONE);
+            assertTrue(future.isCompletedExceptionally());
+            assertEquals(1, essService.sruEndpoints.choose().getOutstanding());
+        } finally {
+            essService.client.close();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void testTimeoutIsNotCountedByLimiter() throws Exception {
+        EssService essService = mockService("base", "format", "<foo/>");
+        doCallRealMethod().when(essService).gatewayTimeout(anyString());
+        essService.sruLimiter = new AdaptiveLimiter("sru", new LimiterConfiguration(), new MetricRegistry());
+        int limit = essService.sruLimiter.getLimit();
+        CompletableFuture<Response> sru = new CompletableFuture<>();
+        doReturn(sru).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+
+        AsyncResponse async = mock(AsyncResponse.class);
+        essService.requestCQL(async, "base", "", 0, 0, "format", "T", 50L);
+        ArgumentCaptor<Object> response = ArgumentCaptor.forClass(Object.class);
+        verify(async, timeout(5000)).resume(response.capture());
+        assertEquals(504, ( (Response) response.getValue() ).getStatus());
+        // Cancelled by the timer, right after the timeout is reported, and
+        // the slot is given back once the cancellation has been handled
+        while (essService.sruLimiter.getInFlight() != 0) {
+            Thread.sleep(1);
+        }
+        assertTrue(sru.isCancelled());
+        assertEquals(limit, essService.sruLimiter.getLimit());
+    }
+
+    @Test(timeout = 10_000L)
+    public void testCancelledSruCallIsNotAFailure() throws Exception {
+        EssService essService = mockService("base", "format", "<foo/>");
+        MetricRegistry metrics = new MetricRegistry();
+        try (ServerSocket silent = new ServerSocket(0)) {
+            String url = "http://localhost:" + silent.getLocalPort() + "/";
+            // The call only ends when the read times out
+            essService.client = ClientBuilder.newClient().property(ClientProperties.READ_TIMEOUT, 500);
+            essService.sruEndpoints = new LoadBalancer("sru", Collections.singletonList(url), new LoadBalancerConfiguration(), metrics);
+            doCallRealMethod().when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
+
+            essService.requestSru("base", "query", "horse", 1, 1, Deadline.NONE).cancel(true);
+            LoadBalancer.Endpoint endpoint = essService.sruEndpoints.choose();
+            while (endpoint.getOutstanding() > 1) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, metrics.getMeters().get(LoadBalancer.class.getCanonicalName() + "#sru." + url + ".failures").getCount());
+        } finally {
+            essService.client.close();
+        }
+    }
+
     @Test
     public void testRequestBadBase() throws Exception {
         EssService essService = mockService("base", "format", "<foo/>", "<bar/>");
         doReturn(readXMLObject(SearchRetrieveResponse.class, "/sru/response.xml")).when(essService).responseSru(any(Response.class));
-        doReturn(responseOk).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt());
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
 
-        Response resp = essService.requestCQL("badbase", "", 0, 0, "format", null);
+        AsyncResponse async = mock(AsyncResponse.class);
+        essService.requestCQL(async, "badbase", "", 0, 0, "format", null, null);
+        Response resp = resumed(async);
         assertNotEquals("Not success", 200, resp.getStatus());
     }
 
@@ -113,9 +505,11 @@ public class EssServiceTest {
     public void testRequestBadEscape() throws Exception {
         EssService essService = mockService("base", "format", "<foo/>", "<bar/>");
         doReturn(readXMLObject(SearchRetrieveResponse.class, "/sru/response_bad_escape.xml")).when(essService).responseSru(any(Response.class));
-        doReturn(responseOk).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt());
+        doReturn(CompletableFuture.completedFuture(responseOk)).when(essService).requestSru(anyString(), anyString(), anyString(), anyInt(), anyInt(), any(Deadline.class));
 
-        Response resp = essService.requestCQL("base", "", 0, 0, "format", "T");
+        AsyncResponse async = mock(AsyncResponse.class);
+        essService.requestCQL(async, "base", "", 0, 0, "format", "T", null);
+        Response resp = resumed(async);
         assertEquals("Success", 200, resp.getStatus());
         EssResponse entity = (EssResponse) resp.getEntity();
         String actual = writeXmlObject(entity);
@@ -130,16 +524,24 @@ public class EssServiceTest {
         essService.timerRequest = timer;
         essService.timerSruRequest = timer;
         essService.timerSruReadResponse = timer;
+        essService.taggedMetrics = new TaggedMetrics(new MetricRegistry(), EssService.class);
         essService.executor = mockExecutorService();
         essService.formatting = makeFormatting(docs);
         essService.knownBases = Arrays.asList(bases.split(","));
-        doCallRealMethod().when(essService).requestCQL(anyString(), anyString(), anyInt(), anyInt(), anyString(), anyString());
-        doCallRealMethod().when(essService).requestRPN(anyString(), anyString(), anyInt(), anyInt(), anyString(), anyString());
+        doCallRealMethod().when(essService).requestCQL(any(AsyncResponse.class), anyString(), anyString(), anyInt(), anyInt(), anyString(), anyString(), anyLong());
+        doCallRealMethod().when(essService).requestRPN(any(AsyncResponse.class), anyString(), anyString(), anyInt(), anyInt(), anyString(), anyString(), anyLong());
         doCallRealMethod().when(essService).serverError(anyString());
-        doCallRealMethod().when(essService).buildResponse(any(SearchRetrieveResponse.class), anyString(), anyString(), anyString());
+        doCallRealMethod().when(essService).serviceUnavailable(anyString());
+        doCallRealMethod().when(essService).buildPage(any(SearchRetrieveResponse.class), anyString(), anyString(), anyString(), any(Deadline.class), any(ExecutorService.class));
         return essService;
     }
 
+    private static Response resumed(AsyncResponse async) {
+        ArgumentCaptor<Object> response = ArgumentCaptor.forClass(Object.class);
+        verify(async).resume(response.capture());
+        return (Response) response.getValue();
+    }
+
     private boolean compare(String expected, String actual) throws SAXException, IOException, XPathExpressionException {
         XmlDiffWriter writer;
         if (System.getProperty("test") == null) {
@@ -158,9 +560,9 @@ public class EssServiceTest {
     private Formatting makeFormatting(String... xmls) {
         Formatting formatting = mock(Formatting.class);
         doCallRealMethod().when(formatting).formattingError(anyString());
-        OngoingStubbing<Callable<Element>> stub = when(formatting.formattingCall(any(Element.class), anyString(), anyString(), anyString()));
+        OngoingStubbing<Callable<FormattedRecord>> stub = when(formatting.formattingCall(any(Element.class), anyString(), anyString(), anyString(), any(Deadline.class)));
         for (String xml : xmls) {
-            stub = stub.then(i -> (Callable<Element>) ()-> stringToXMLObject(xml));
+            stub = stub.then(i -> (Callable<FormattedRecord>) ()-> FormattedRecord.of(stringToXMLObject(xml)));
         }
         return formatting;
     }
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.MetricRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class FormatCacheTest {
+
+    private final MetricRegistry metrics;
+    private final FormatCache cache;
+
+    public FormatCacheTest() {
+        this.metrics = new MetricRegistry();
+        this.cache = new FormatCache("maximumSize=100", metrics);
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        Element formatted = parse("<a xmlns='urn:a'><b xmlns=''>text</b></a>");
+        assertNull(cache.get("base:1", "format"));
+        cache.put("base:1", "format", FormattedRecord.of(formatted));
+        Element cached = cache.get("base:1", "format").toElement();
+        assertNotNull(cached);
+        assertNotSame(formatted, cached);
+        assertTrue(formatted.isEqualNode(cached));
+        assertNull(cache.get("base:1", "other"));
+        assertEquals(1, metrics.meter(FormatCache.class.getCanonicalName() + "#hits").getCount());
+        assertEquals(2, metrics.meter(FormatCache.class.getCanonicalName() + "#misses").getCount());
+    }
+
+    @Test
+    public void testErrorsAreNotCached() throws Exception {
+        cache.put("base:1", "format", FormattedRecord.of(Formatting.ERROR_DOCUMENT.getDocument("error")));
+        assertNull(cache.get("base:1", "format"));
+    }
+
+    private static Element parse(String xml) throws Exception {
+        try (InputStream is = new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))) {
+            return XmlTools.newDocumentBuilder().parse(is).getDocumentElement();
+        }
+    }
+}
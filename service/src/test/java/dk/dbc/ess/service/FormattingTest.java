@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.MetricRegistry;
+import dk.dbc.ess.service.response.EssResponse;
+import dk.dbc.openformat.FormatRequest;
+import io.dropwizard.util.Duration;
+import dk.dbc.openformat.OriginalData;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
+import javax.xml.stream.XMLStreamException;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class FormattingTest {
+
+    private final Formatting formatting;
+
+    public FormattingTest() {
+        Settings settings = new Settings();
+        settings.setOpenFormatUrl("http://localhost/");
+        this.formatting = new Formatting(settings, new MetricRegistry(), null);
+    }
+
+    @Test
+    public void testSplitBatchResponse() throws Exception {
+        List<Element> records = elements(formatting.splitBatchResponse(parse(
+                "<of:formatResponse xmlns:of='http://oss.dbc.dk/ns/openformat'>" +
+                "<a/><of:error>bad record</of:error><c/>" +
+                "</of:formatResponse>"), 3, "T"));
+        assertEquals(3, records.size());
+        assertEquals("a", records.get(0).getLocalName());
+        assertEquals("error", records.get(1).getLocalName());
+        assertEquals(EssResponse.NS, records.get(1).getNamespaceURI());
+        assertEquals("c", records.get(2).getLocalName());
+    }
+
+    @Test
+    public void testSplitBatchResponseRequestError() throws Exception {
+        List<Element> records = elements(formatting.splitBatchResponse(parse(
+                "<of:formatResponse xmlns:of='http://oss.dbc.dk/ns/openformat'>" +
+                "<of:error>bad request</of:error>" +
+                "</of:formatResponse>"), 2, "T"));
+        assertEquals(2, records.size());
+        assertEquals(EssResponse.NS, records.get(0).getNamespaceURI());
+        assertEquals(EssResponse.NS, records.get(1).getNamespaceURI());
+    }
+
+    @Test
+    public void testSplitBatchResponseCountMismatch() throws Exception {
+        List<Element> records = elements(formatting.splitBatchResponse(parse(
+                "<of:formatResponse xmlns:of='http://oss.dbc.dk/ns/openformat'>" +
+                "<a/>" +
+                "</of:formatResponse>"), 2, "T"));
+        assertEquals(2, records.size());
+        assertEquals("error", records.get(0).getLocalName());
+        assertEquals("error", records.get(1).getLocalName());
+    }
+
+    @Test
+    public void testSplitRawResponse() throws Exception {
+        List<FormattedRecord> raw = formatting.splitRawResponse(stream(
+                "<of:formatResponse xmlns:of='http://oss.dbc.dk/ns/openformat' xmlns:m='urn:m'>" +
+                "<m:a m:x='1'><b>text &amp; more</b></m:a><of:error>bad record</of:error><c xmlns='urn:c'/>" +
+                "</of:formatResponse>"), 3, "T");
+        List<Element> records = elements(raw);
+        assertEquals(3, records.size());
+        assertEquals("urn:m", records.get(0).getNamespaceURI());
+        assertEquals("1", records.get(0).getAttributeNS("urn:m", "x"));
+        Element b = (Element) records.get(0).getFirstChild();
+        assertNull(b.getNamespaceURI());
+        assertEquals("text & more", b.getTextContent());
+        assertEquals(EssResponse.NS, records.get(1).getNamespaceURI());
+        assertEquals("urn:c", records.get(2).getNamespaceURI());
+    }
+
+    @Test
+    public void testSplitRawResponseRequestError() throws Exception {
+        List<Element> records = elements(formatting.splitRawResponse(stream(
+                "<of:formatResponse xmlns:of='http://oss.dbc.dk/ns/openformat'>" +
+                "<of:error>bad request</of:error>" +
+                "</of:formatResponse>"), 2, "T"));
+        assertEquals(2, records.size());
+        assertEquals("error", records.get(0).getLocalName());
+        assertEquals("error", records.get(1).getLocalName());
+    }
+
+    @Test(expected = XMLStreamException.class)
+    public void testSplitRawResponseNotWellFormed() throws Exception {
+        formatting.splitRawResponse(stream(
+                "<of:formatResponse xmlns:of='http://oss.dbc.dk/ns/openformat'>" +
+                "<a><b></a>" +
+                "</of:formatResponse>"), 1, "T");
+    }
+
+    @Test
+    public void testRawRecordInResponse() throws Exception {
+        FormattedRecord record = formatting.splitRawResponse(stream(
+                "<formatResponse xmlns='http://oss.dbc.dk/ns/openformat'><a xmlns=''/></formatResponse>"), 1, "T").get(0);
+        Page page = new Page(1, Collections.singletonList(CompletableFuture.completedFuture(record)));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new EssResponseWriter(page, "T").write(bos);
+        Element response = parse(new String(bos.toByteArray(), StandardCharsets.UTF_8));
+        Element a = (Element) response.getElementsByTagNameNS(EssResponse.NS, "records").item(0).getFirstChild();
+        assertEquals("a", a.getLocalName());
+        assertNull(a.getNamespaceURI());
+    }
+
+    @Test
+    public void testFormatRequestWriter() throws Exception {
+        byte[] fragment = "<m:record xmlns:m='urn:m'><m:field>text</m:field></m:record>".getBytes(StandardCharsets.UTF_8);
+        FormatRequestWriter writer = new FormatRequestWriter(Arrays.asList(fragment, parse("<r xmlns='urn:r'/>")),
+                                                             Arrays.asList("a", "b"), "format", "T");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        writer.write(bos);
+        FormatRequest request = Marshalling.INSTANCE.unmarshal(new ByteArrayInputStream(bos.toByteArray()), FormatRequest.class);
+        assertEquals("format", request.getOutputFormat());
+        assertEquals("T", request.getTrackingId());
+        assertEquals(2, request.getOriginalDatas().size());
+        OriginalData first = request.getOriginalDatas().get(0);
+        assertEquals("a", first.getIdentifier());
+        assertEquals("urn:m", first.getAny().getNamespaceURI());
+        assertEquals("text", first.getAny().getTextContent());
+        assertEquals("urn:r", request.getOriginalDatas().get(1).getAny().getNamespaceURI());
+    }
+
+    @Test
+    public void testErrorDocument() throws Exception {
+        Element first = Formatting.ERROR_DOCUMENT.getDocument("first");
+        Element second = Formatting.ERROR_DOCUMENT.getDocument("second");
+        assertEquals("error", first.getLocalName());
+        assertEquals(EssResponse.NS, first.getNamespaceURI());
+        Element message = (Element) first.getElementsByTagNameNS(EssResponse.NS, "message").item(0);
+        assertEquals("first", message.getTextContent());
+        assertFalse(message.hasAttribute("id"));
+        assertEquals("second", second.getElementsByTagNameNS(EssResponse.NS, "message").item(0).getTextContent());
+        assertNotSame(first.getOwnerDocument(), second.getOwnerDocument());
+    }
+
+    @Test
+    public void testCancelledCallIsNotCounted() throws Exception {
+        Settings settings = new Settings();
+        settings.setOpenFormatUrl("http://localhost/");
+        MetricRegistry metrics = new MetricRegistry();
+        Client client = mock(Client.class);
+        WebTarget target = mock(WebTarget.class);
+        Invocation.Builder builder = mock(Invocation.Builder.class);
+        Invocation invocation = mock(Invocation.class);
+        when(client.target(anyString())).thenReturn(target);
+        when(target.request(any(MediaType.class))).thenReturn(builder);
+        when(builder.buildPost(any())).thenReturn(invocation);
+        when(invocation.invoke()).then(i -> {
+            Thread.currentThread().interrupt();
+            throw new ProcessingException(new InterruptedIOException());
+        });
+        Formatting cancelled = new Formatting(settings, metrics, client);
+        int limit = (Integer) metrics.getGauges().get(AdaptiveLimiter.class.getCanonicalName() + "#openformat.limit").getValue();
+
+        try {
+            cancelled.formattingCall("<foo/>".getBytes(StandardCharsets.UTF_8), "format", "id", "T", Deadline.NONE).call();
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals(limit, metrics.getGauges().get(AdaptiveLimiter.class.getCanonicalName() + "#openformat.limit").getValue());
+        assertEquals(0, metrics.getGauges().get(AdaptiveLimiter.class.getCanonicalName() + "#openformat.inFlight").getValue());
+        assertEquals(0, metrics.getMeters().get(LoadBalancer.class.getCanonicalName() + "#openformat.http://localhost/.failures").getCount());
+    }
+
+    @Test
+    public void testStartedWhenSlotIsAcquired() throws Exception {
+        Settings settings = new Settings();
+        settings.setOpenFormatUrl("http://localhost/");
+        settings.getFormatLimiter().setInitialLimit(1);
+        settings.getFormatLimiter().setMaxWait(Duration.milliseconds(10));
+        Client client = mock(Client.class);
+        WebTarget target = mock(WebTarget.class);
+        Invocation.Builder builder = mock(Invocation.Builder.class);
+        Invocation invocation = mock(Invocation.class);
+        when(client.target(anyString())).thenReturn(target);
+        when(target.request(any(MediaType.class))).thenReturn(builder);
+        when(builder.buildPost(any())).thenReturn(invocation);
+        Formatting limited = new Formatting(settings, new MetricRegistry(), client);
+        AtomicBoolean first = new AtomicBoolean();
+        AtomicBoolean second = new AtomicBoolean();
+        AtomicReference<FormattedRecord> rejected = new AtomicReference<>();
+        when(invocation.invoke()).then(i -> {
+            // The only slot is taken by this call
+            rejected.set(limited.formattingCall("<bar/>".getBytes(StandardCharsets.UTF_8), "format", "id2", "T", Deadline.NONE, () -> second.set(true)).call());
+            throw new ProcessingException("down");
+        });
+
+        limited.formattingCall("<foo/>".getBytes(StandardCharsets.UTF_8), "format", "id1", "T", Deadline.NONE, () -> first.set(true)).call();
+        assertTrue(first.get());
+        assertFalse("Not started while waiting for the limiter", second.get());
+        assertTrue(rejected.get().toElement().getTextContent().contains("overloaded"));
+    }
+
+    @Test
+    public void testInterruptedWhileWaitingForSlot() throws Exception {
+        Settings settings = new Settings();
+        settings.setOpenFormatUrl("http://localhost/");
+        settings.getFormatLimiter().setInitialLimit(1);
+        Client client = mock(Client.class);
+        WebTarget target = mock(WebTarget.class);
+        Invocation.Builder builder = mock(Invocation.Builder.class);
+        Invocation invocation = mock(Invocation.class);
+        when(client.target(anyString())).thenReturn(target);
+        when(target.request(any(MediaType.class))).thenReturn(builder);
+        when(builder.buildPost(any())).thenReturn(invocation);
+        Formatting limited = new Formatting(settings, new MetricRegistry(), client);
+        AtomicReference<FormattedRecord> cancelled = new AtomicReference<>();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        when(invocation.invoke()).then(i -> {
+            // The only slot is taken by this call, so the next one waits
+            Thread.currentThread().interrupt();
+            cancelled.set(limited.formattingCall("<bar/>".getBytes(StandardCharsets.UTF_8), "format", "id2", "T", Deadline.NONE).call());
+            interrupted.set(Thread.interrupted());
+            throw new ProcessingException("down");
+        });
+
+        limited.formattingCall("<foo/>".getBytes(StandardCharsets.UTF_8), "format", "id1", "T", Deadline.NONE).call();
+        assertTrue("Interrupt status is kept", interrupted.get());
+        assertEquals(Formatting.DEADLINE_EXCEEDED, cancelled.get().toElement().getTextContent().trim());
+    }
+
+    private static List<Element> elements(List<FormattedRecord> records) {
+        List<Element> elements = new ArrayList<>(records.size());
+        for (FormattedRecord record : records) {
+            elements.add(record.toElement());
+        }
+        return elements;
+    }
+
+    private static InputStream stream(String xml) {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Element parse(String xml) throws Exception {
+        try (InputStream is = new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))) {
+            return XmlTools.newDocumentBuilder().parse(is).getDocumentElement();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.Snapshot;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class HdrReservoirTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void testPercentiles() throws Exception {
+        HdrReservoir reservoir = new HdrReservoir(now::get);
+        for (long i = 1 ; i <= 10000 ; i++) {
+            reservoir.update(i * 1000);
+        }
+        Snapshot snapshot = reservoir.getSnapshot();
+        assertEquals(10000, snapshot.size());
+        assertEquals(1000, snapshot.getMin());
+        assertEquals(10_000_000, snapshot.getMax(), 10_000);
+        assertEquals(5_000_000, snapshot.getMedian(), 5_000);
+        assertEquals(9_900_000, snapshot.get99thPercentile(), 10_000);
+        assertEquals(9_990_000, snapshot.get999thPercentile(), 10_000);
+        // Taking a snapshot doesn't lose values
+        assertEquals(10000, reservoir.getSnapshot().size());
+    }
+
+    @Test
+    public void testWindow() throws Exception {
+        HdrReservoir reservoir = new HdrReservoir(now::get);
+        reservoir.update(1);
+        reservoir.getSnapshot();
+        now.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        reservoir.update(2);
+        assertEquals(2, reservoir.getSnapshot().size());
+        now.addAndGet(TimeUnit.SECONDS.toNanos(35));
+        Snapshot snapshot = reservoir.getSnapshot();
+        assertEquals(1, snapshot.size());
+        assertEquals(2, snapshot.getMin());
+        now.addAndGet(TimeUnit.MINUTES.toNanos(5));
+        assertEquals(0, reservoir.getSnapshot().size());
+    }
+}
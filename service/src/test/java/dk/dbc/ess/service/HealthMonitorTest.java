@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.health.HealthCheck;
+import io.dropwizard.util.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class HealthMonitorTest {
+
+    @Test(timeout = 5_000L)
+    public void testSnapshot() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        HealthMonitor monitor = new HealthMonitor(Duration.minutes(1))
+                .register("ok", new HealthCheck() {
+                    @Override
+                    protected Result check() throws Exception {
+                        calls.incrementAndGet();
+                        return Result.healthy();
+                    }
+                })
+                .register("bad", new HealthCheck() {
+                    @Override
+                    protected Result check() throws Exception {
+                        throw new IllegalStateException("down");
+                    }
+                });
+        monitor.start();
+        try {
+            while (monitor.snapshot().get(1).getAge() == null || monitor.snapshot().get(0).getAge() == null) {
+                Thread.sleep(10);
+            }
+            assertTrue(monitor.snapshot().get(0).healthy);
+            HealthMonitor.Status bad = monitor.snapshot().get(1);
+            assertEquals("bad", bad.name);
+            assertFalse(bad.healthy);
+            assertEquals("down", bad.message);
+            assertFalse(monitor.cached("bad").execute().isHealthy());
+            assertTrue(monitor.cached("ok").execute().isHealthy());
+            assertEquals(1, calls.get());
+        } finally {
+            monitor.stop();
+        }
+    }
+
+    @Test(timeout = 5_000L)
+    public void testNotCheckedYet() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        HealthMonitor monitor = new HealthMonitor(Duration.minutes(1))
+                .register("slow", new HealthCheck() {
+                    @Override
+                    protected Result check() throws Exception {
+                        release.await();
+                        return Result.healthy();
+                    }
+                });
+        monitor.start();
+        try {
+            HealthMonitor.Status status = monitor.snapshot().get(0);
+            assertFalse(status.healthy);
+            assertNull(status.getAge());
+            release.countDown();
+            while (monitor.snapshot().get(0).getAge() == null) {
+                Thread.sleep(10);
+            }
+            assertTrue(monitor.snapshot().get(0).healthy);
+        } finally {
+            monitor.stop();
+        }
+    }
+
+    @Test(timeout = 5_000L)
+    public void testStale() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        HealthMonitor monitor = new HealthMonitor(Duration.milliseconds(20))
+                .register("hanging", new HealthCheck() {
+                    @Override
+                    protected Result check() throws Exception {
+                        if (calls.incrementAndGet() > 1) {
+                            release.await();
+                        }
+                        return Result.healthy();
+                    }
+                });
+        monitor.start();
+        try {
+            while (calls.get() < 2) {
+                Thread.sleep(10);
+            }
+            while (monitor.snapshot().get(0).healthy) {
+                Thread.sleep(10);
+            }
+            HealthMonitor.Status status = monitor.snapshot().get(0);
+            assertEquals("Result is stale", status.message);
+            assertTrue(status.getAge() > 60);
+            assertFalse(monitor.cached("hanging").execute().isHealthy());
+        } finally {
+            release.countDown();
+            monitor.stop();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class HedgerTest {
+
+    private static Timer latency(int samples) {
+        Timer timer = new Timer();
+        for (int i = 0 ; i < samples ; i++) {
+            timer.update(1, TimeUnit.MILLISECONDS);
+        }
+        return timer;
+    }
+
+    @Test(timeout = 5_000L)
+    public void testHedgeWins() throws Exception {
+        Hedger hedger = new Hedger(latency(100), 95.0, 100.0, new MetricRegistry());
+        CompletableFuture<String> slow = new CompletableFuture<>();
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<String> result = hedger.call(started -> {
+            started.run();
+            return attempts.incrementAndGet() == 1 ? slow : CompletableFuture.completedFuture("hedge");
+        });
+        assertEquals("hedge", result.get());
+        assertEquals(2, attempts.get());
+        try {
+            // The loser is cancelled after the result has completed
+            slow.join();
+            fail("Expected the primary to be cancelled");
+        } catch (CancellationException ex) {
+            assertTrue(slow.isCancelled());
+        }
+    }
+
+    @Test(timeout = 5_000L)
+    public void testHedgeDelayFromStart() throws Exception {
+        Hedger hedger = new Hedger(latency(100), 95.0, 100.0, new MetricRegistry());
+        CompletableFuture<Runnable> queued = new CompletableFuture<>();
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<String> result = hedger.call(started -> {
+            if (attempts.incrementAndGet() == 1) {
+                queued.complete(started);
+                return new CompletableFuture<>();
+            }
+            return CompletableFuture.completedFuture("hedge");
+        });
+        Thread.sleep(50);
+        assertEquals("Still queued, so not hedged", 1, attempts.get());
+        queued.get().run();
+        assertEquals("hedge", result.get());
+        assertEquals(2, attempts.get());
+    }
+
+    @Test(timeout = 5_000L)
+    public void testNoHedgeWithoutLatencyData() throws Exception {
+        Hedger hedger = new Hedger(latency(10), 95.0, 100.0, new MetricRegistry());
+        CompletableFuture<String> slow = new CompletableFuture<>();
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<String> result = hedger.call(started -> {
+            started.run();
+            attempts.incrementAndGet();
+            return slow;
+        });
+        Thread.sleep(50);
+        assertEquals(1, attempts.get());
+        slow.complete("primary");
+        assertEquals("primary", result.get());
+    }
+
+    @Test(timeout = 5_000L)
+    public void testBudget() throws Exception {
+        MetricRegistry metrics = new MetricRegistry();
+        Hedger hedger = new Hedger(latency(100), 95.0, 50.0, metrics);
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<String> first = hedger.call(started -> {
+            started.run();
+            attempts.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        Thread.sleep(50);
+        assertEquals(1, attempts.get());
+        assertEquals(1, metrics.meter(Hedger.class.getCanonicalName() + "#skippedBudget").getCount());
+        CompletableFuture<String> second = hedger.call(started -> {
+            started.run();
+            attempts.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        Thread.sleep(50);
+        assertEquals(3, attempts.get());
+        first.cancel(true);
+        second.cancel(true);
+    }
+}
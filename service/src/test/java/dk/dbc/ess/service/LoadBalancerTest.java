@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.util.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class LoadBalancerTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicLong now = new AtomicLong();
+    private final LoadBalancerConfiguration config;
+
+    public LoadBalancerTest() {
+        config = new LoadBalancerConfiguration();
+        config.setDecayTime(Duration.seconds(10));
+        config.setMaxFailures(2);
+        config.setSlowRatio(10.0);
+        config.setEjectTime(Duration.seconds(30));
+    }
+
+    @Test
+    public void testPrefersFastEndpoint() throws Exception {
+        LoadBalancer balancer = balancer("a", "b");
+        LoadBalancer.Endpoint a = null;
+        LoadBalancer.Endpoint b = null;
+        while (a == null || b == null) {
+            LoadBalancer.Endpoint endpoint = balancer.choose();
+            if (endpoint.getUrl().equals("a")) {
+                a = endpoint;
+                endpoint.release(true, 1 * MS);
+            } else {
+                b = endpoint;
+                endpoint.release(true, 4500 * MS / 1000);
+            }
+        }
+        for (int i = 0 ; i < 4 ; i++) {
+            assertEquals("a", balancer.choose().getUrl());
+        }
+        // 4 outstanding on a makes it more expensive than b
+        assertEquals("b", balancer.choose().getUrl());
+        assertEquals(4, a.getOutstanding());
+        assertEquals(1, b.getOutstanding());
+    }
+
+    @Test
+    public void testEjectsFailingEndpointAndProbes() throws Exception {
+        LoadBalancer balancer = balancer("a", "b");
+        LoadBalancer.Endpoint b = failUntilEjected(balancer);
+        for (int i = 0 ; i < 10 ; i++) {
+            call(balancer, "a", true, 2 * MS);
+        }
+
+        now.addAndGet(Duration.seconds(30).toNanoseconds());
+        LoadBalancer.Endpoint probe = balancer.choose();
+        assertSame(b, probe);
+        // Only one probe at a time
+        assertEquals("a", balancer.choose().getUrl());
+        probe.release(true, 1 * MS);
+        assertFalse(b.isEjected());
+    }
+
+    @Test
+    public void testFailedProbeEjectsAgain() throws Exception {
+        LoadBalancer balancer = balancer("a", "b");
+        LoadBalancer.Endpoint b = failUntilEjected(balancer);
+        now.addAndGet(Duration.seconds(30).toNanoseconds());
+        LoadBalancer.Endpoint probe = balancer.choose();
+        assertSame(b, probe);
+        probe.release(false, 1 * MS);
+        assertTrue(b.isEjected());
+        assertEquals("a", balancer.choose().getUrl());
+    }
+
+    @Test
+    public void testAbandonedCallsDoNotEject() throws Exception {
+        LoadBalancer balancer = balancer("a", "b");
+        for (int i = 0 ; i < 10 ; i++) {
+            LoadBalancer.Endpoint endpoint = balancer.choose();
+            endpoint.abandon();
+            assertFalse(endpoint.isEjected());
+            assertEquals(0, endpoint.getOutstanding());
+        }
+    }
+
+    @Test
+    public void testAbandonedProbeKeepsEjected() throws Exception {
+        LoadBalancer balancer = balancer("a", "b");
+        LoadBalancer.Endpoint b = failUntilEjected(balancer);
+        now.addAndGet(Duration.seconds(30).toNanoseconds());
+        LoadBalancer.Endpoint probe = balancer.choose();
+        assertSame(b, probe);
+        probe.abandon();
+        assertTrue(b.isEjected());
+        assertEquals(0, b.getOutstanding());
+        // Not probing any more, so the next call can probe
+        assertSame(b, balancer.choose());
+    }
+
+    @Test
+    public void testEjectsSlowEndpoint() throws Exception {
+        LoadBalancer balancer = balancer("a", "b");
+        for (int i = 0 ; i < 100 ; i++) {
+            now.addAndGet(MS);
+            LoadBalancer.Endpoint endpoint = balancer.choose();
+            if (endpoint.getUrl().equals("a")) {
+                // Answer once, then keep calls outstanding on a, so b gets chosen
+                if (endpoint.getLatency() == 0) {
+                    endpoint.release(true, 2 * MS);
+                }
+            } else {
+                endpoint.release(true, 30 * MS);
+                if (endpoint.isEjected()) {
+                    return;
+                }
+            }
+        }
+        fail("b was not ejected");
+    }
+
+    @Test
+    public void testLastEndpointIsNotEjected() throws Exception {
+        LoadBalancer balancer = new LoadBalancer("test", Collections.singletonList("a"), config, new MetricRegistry(), now::get);
+        for (int i = 0 ; i < 10 ; i++) {
+            LoadBalancer.Endpoint endpoint = balancer.choose();
+            assertEquals("a", endpoint.getUrl());
+            endpoint.release(false, 1 * MS);
+            assertFalse(endpoint.isEjected());
+        }
+    }
+
+    /**
+     * Call until b is ejected, a answers in 2ms, b fails in 1ms
+     *
+     * @param balancer balancer over a and b
+     * @return endpoint b
+     */
+    private LoadBalancer.Endpoint failUntilEjected(LoadBalancer balancer) {
+        for (int i = 0 ; i < 100 ; i++) {
+            now.addAndGet(MS);
+            LoadBalancer.Endpoint endpoint = balancer.choose();
+            if (endpoint.getUrl().equals("a")) {
+                endpoint.release(true, 2 * MS);
+            } else {
+                endpoint.release(false, 1 * MS);
+            }
+            if (endpoint.isEjected()) {
+                assertEquals("b", endpoint.getUrl());
+                return endpoint;
+            }
+        }
+        fail("b was not ejected");
+        return null;
+    }
+
+    private void call(LoadBalancer balancer, String expected, boolean success, long duration) {
+        now.addAndGet(MS);
+        LoadBalancer.Endpoint endpoint = balancer.choose();
+        assertEquals(expected, endpoint.getUrl());
+        endpoint.release(success, duration);
+    }
+
+    private LoadBalancer balancer(String... urls) {
+        return new LoadBalancer("test", Arrays.asList(urls), config, new MetricRegistry(), now::get);
+    }
+}
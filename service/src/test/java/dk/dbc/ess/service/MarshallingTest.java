@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import dk.dbc.openformat.FormatRequest;
+import dk.dbc.sru.sruresponse.SearchRetrieveResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class MarshallingTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        FormatRequest request = new FormatRequest();
+        request.setOutputFormat("netpunkt_standard");
+        request.setTrackingId("T");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Marshalling.INSTANCE.marshal(request, bos);
+        FormatRequest copy = Marshalling.INSTANCE.unmarshal(new ByteArrayInputStream(bos.toByteArray()), FormatRequest.class);
+        assertEquals("netpunkt_standard", copy.getOutputFormat());
+        assertEquals("T", copy.getTrackingId());
+    }
+
+    @Test
+    public void testSruResponse() throws Exception {
+        try (InputStream is = getClass().getResourceAsStream("/sru/response.xml")) {
+            SearchRetrieveResponse response = Marshalling.INSTANCE.unmarshal(is, SearchRetrieveResponse.class);
+            assertEquals(Long.valueOf(5), response.getNumberOfRecords());
+            assertEquals(2, response.getRecords().getRecords().size());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsDtd() throws Exception {
+        String xml = "<!DOCTYPE x [<!ENTITY e SYSTEM \"file:///etc/passwd\">]><formatRequest xmlns=\"http://oss.dbc.dk/ns/openformat\">&e;</formatRequest>";
+        Marshalling.INSTANCE.unmarshal(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), FormatRequest.class);
+    }
+}
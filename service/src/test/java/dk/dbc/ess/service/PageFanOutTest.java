@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class PageFanOutTest {
+
+    @Test(timeout = 5000L)
+    public void testFailedPageCancelsOthers() throws Exception {
+        CompletableFuture<FormattedRecord> first = new CompletableFuture<>();
+        CompletableFuture<Page> lastPage = new CompletableFuture<>();
+        IllegalStateException failure = new IllegalStateException("Search failed");
+        CompletableFuture<Page> merged = PageFanOut.fetch((start, rows) -> {
+            switch (start) {
+                case 1:
+                    return lastPage;
+                case 3:
+                    return CompletableFuture.completedFuture(new Page(10, Arrays.asList(first)));
+                default:
+                    CompletableFuture<Page> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(failure);
+                    return failed;
+            }
+        }, 1, 6, 2, 3);
+        try {
+            merged.join();
+            fail("Expected failure");
+        } catch (CompletionException ex) {
+            assertSame(failure, ex.getCause());
+        }
+        assertTrue(first.isCancelled());
+        assertTrue(lastPage.isCancelled());
+    }
+
+    @Test(timeout = 5000L)
+    public void testCancelledMergeCancelsFetches() throws Exception {
+        CompletableFuture<FormattedRecord> first = new CompletableFuture<>();
+        CompletableFuture<Page> lastPage = new CompletableFuture<>();
+        CompletableFuture<Page> merged = PageFanOut.fetch((start, rows) ->
+                start == 1 ? CompletableFuture.completedFuture(new Page(10, Arrays.asList(first))) : lastPage,
+                                                          1, 4, 2, 2);
+        merged.cancel(true);
+        assertTrue(first.isCancelled());
+        assertTrue(lastPage.isCancelled());
+    }
+}
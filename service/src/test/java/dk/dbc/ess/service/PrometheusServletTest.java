@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class PrometheusServletTest {
+
+    @Test
+    public void testTaggedNames() throws Exception {
+        TaggedMetrics tagged = new TaggedMetrics(new MetricRegistry(), EssService.class, 2);
+        assertEquals("dk.dbc.ess.service.EssService#request", tagged.name("request"));
+        assertEquals("dk.dbc.ess.service.EssService#request{base=a,format=x_y}", tagged.name("request", "base", "a", "format", "x,y"));
+        assertEquals("dk.dbc.ess.service.EssService#request{base=b}", tagged.name("request", "base", "b"));
+        assertEquals("dk.dbc.ess.service.EssService#request{base=other}", tagged.name("request", "base", "c"));
+        assertEquals("dk.dbc.ess.service.EssService#request{base=a}", tagged.name("request", "base", "a"));
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        MetricRegistry metrics = new MetricRegistry();
+        TaggedMetrics tagged = new TaggedMetrics(metrics, EssService.class);
+        tagged.timer("request", "base", "a").update(2, TimeUnit.SECONDS);
+        tagged.timer("request", "base", "b").update(1, TimeUnit.SECONDS);
+        tagged.histogram("hits", "base", "a").update(42);
+        metrics.meter("x.Y#rejections").mark(3);
+        metrics.gauge("x.Y#up", () -> (Gauge<Boolean>) () -> true);
+        metrics.gauge("x.Y#name", () -> (Gauge<String>) () -> "ignored");
+
+        StringWriter writer = new StringWriter();
+        new PrometheusServlet(metrics).write(writer);
+        String text = writer.toString();
+
+        assertTrue(text, text.contains("# TYPE dk_dbc_ess_service_EssService_request_seconds summary\n"));
+        assertTrue(text, text.contains("dk_dbc_ess_service_EssService_request_seconds{base=\"a\",quantile=\"0.5\"} 2.00"));
+        assertTrue(text, text.contains("dk_dbc_ess_service_EssService_request_seconds_count{base=\"a\"} 1\n"));
+        assertTrue(text, text.contains("dk_dbc_ess_service_EssService_request_seconds_count{base=\"b\"} 1\n"));
+        assertTrue(text, text.contains("dk_dbc_ess_service_EssService_hits{base=\"a\",quantile=\"0.99\"} 42\n"));
+        assertTrue(text, text.contains("# TYPE x_Y_rejections_total counter\nx_Y_rejections_total 3\n"));
+        assertTrue(text, text.contains("# TYPE x_Y_up gauge\nx_Y_up 1\n"));
+        assertFalse(text, text.contains("x_Y_name"));
+        assertEquals(1, text.split("# TYPE dk_dbc_ess_service_EssService_request_seconds ", -1).length - 1);
+    }
+
+    @Test
+    public void testLabels() throws Exception {
+        assertEquals("a=\"x\\\\y\",b_c=\"1\"", PrometheusServlet.labels("a=x\\y,b.c=1"));
+    }
+}
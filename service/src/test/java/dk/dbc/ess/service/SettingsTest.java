@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.jersey.validation.Validators;
+import io.dropwizard.util.Duration;
+import java.util.Set;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class SettingsTest {
+
+    private final Validator validator = Validators.newValidator();
+
+    @Test
+    public void testFormatBatchSizeIsValidated() throws Exception {
+        Settings settings = new Settings();
+        assertEquals(0, violations(settings, "formatBatchSize").size());
+        settings.setFormatBatchSize(0);
+        assertEquals(1, violations(settings, "formatBatchSize").size());
+        settings.setFormatBatchSize(null);
+        assertEquals(1, violations(settings, "formatBatchSize").size());
+    }
+
+    @Test
+    public void testSruCacheTtl() throws Exception {
+        Settings settings = Jackson.newObjectMapper().readValue("{\"sruCacheTtl\": \"*=10s, libris=5m\"}", Settings.class);
+        assertEquals(Duration.seconds(10), settings.getSruCacheTtl().get("*"));
+        assertEquals(Duration.minutes(5), settings.getSruCacheTtl().get("libris"));
+        settings.setSruCacheTtl("");
+        assertTrue(settings.getSruCacheTtl().isEmpty());
+    }
+
+    @Test
+    public void testSruCacheTtlBadEntry() throws Exception {
+        assertBadSruCacheTtl("*=10s,libris", "libris");
+        assertBadSruCacheTtl("*=10s,libris=soon", "libris=soon");
+        assertBadSruCacheTtl("=10s", "=10s");
+        assertBadSruCacheTtl("*=10s,*=5m", "*=5m");
+    }
+
+    private static void assertBadSruCacheTtl(String value, String entry) {
+        try {
+            new Settings().setSruCacheTtl(value);
+            fail("Expected " + value + " to be rejected");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().endsWith(": " + entry) || ex.getMessage().contains(": " + entry + ","));
+        }
+    }
+
+    private Set<ConstraintViolation<Settings>> violations(Settings settings, String property) {
+        return validator.validateProperty(settings, property);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.util.Duration;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class SruCacheTest {
+
+    private final SruCache cache;
+
+    public SruCacheTest() {
+        Map<String, Duration> ttls = new HashMap<>();
+        ttls.put("*", Duration.minutes(1));
+        ttls.put("nocache", Duration.seconds(0));
+        this.cache = new SruCache(10, ttls, new MetricRegistry());
+    }
+
+    @Test
+    public void testIsCached() throws Exception {
+        assertTrue(cache.isCached("base"));
+        assertFalse(cache.isCached("nocache"));
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        byte[] page = "page".getBytes(StandardCharsets.UTF_8);
+        cache.put("base", "query", "q", 1, 10, page);
+        assertArrayEquals(page, cache.get("base", "query", "q", 1, 10));
+        assertNull(cache.get("base", "query", "q", 11, 10));
+        assertNull(cache.get("base", "x-pquery", "q", 1, 10));
+        assertNull(cache.get("other", "query", "q", 1, 10));
+    }
+
+    @Test
+    public void testCapture() throws Exception {
+        SruCache.CapturingInputStream is = cache.capture(stream("0123456789"));
+        while (is.read(new byte[3]) != -1) {
+        }
+        assertArrayEquals("0123456789".getBytes(StandardCharsets.UTF_8), is.getBytes());
+    }
+
+    @Test
+    public void testCaptureTooLarge() throws Exception {
+        SruCache.CapturingInputStream is = cache.capture(stream("0123456789A"));
+        while (is.read() != -1) {
+        }
+        assertNull(is.getBytes());
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
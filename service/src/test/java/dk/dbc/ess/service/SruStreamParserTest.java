@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import dk.dbc.sru.sruresponse.Record;
+import dk.dbc.sru.sruresponse.RecordXMLEscapingDefinition;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.stream.XMLStreamException;
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class SruStreamParserTest {
+
+    @Test
+    public void testParse() throws Exception {
+        List<Record> records = new ArrayList<>();
+        long hits;
+        try (InputStream is = getClass().getResourceAsStream("/sru/response.xml")) {
+            hits = SruStreamParser.parse(is, records::add);
+        }
+        assertEquals(5, hits);
+        assertEquals(2, records.size());
+        Record record = records.get(0);
+        assertEquals(RecordXMLEscapingDefinition.XML, record.getRecordXMLEscaping());
+        List<Object> content = record.getRecordData().getContent();
+        assertEquals(1, content.size());
+        assertEquals("record", ((Element) content.get(0)).getLocalName());
+    }
+
+    @Test
+    public void testParsePassthrough() throws Exception {
+        String xml = "<searchRetrieveResponse xmlns='" + SruStreamParser.SRU_NS + "' xmlns:m='urn:m'>" +
+                     "<numberOfRecords>3</numberOfRecords><records>" +
+                     "<record><recordXMLEscaping>xml</recordXMLEscaping><recordData>" +
+                     "<m:record><m:controlfield tag='001'>1234</m:controlfield><m:field>a &amp; b</m:field></m:record>" +
+                     "</recordData></record>" +
+                     "<record><recordXMLEscaping>xml</recordXMLEscaping><recordData><r xmlns=''/></recordData></record>" +
+                     "<record><recordXMLEscaping>string</recordXMLEscaping><recordData>&lt;r/&gt;</recordData></record>" +
+                     "<record><recordXMLEscaping>xml</recordXMLEscaping><recordData>fake<r/></recordData></record>" +
+                     "</records></searchRetrieveResponse>";
+        List<SruRecord> records = new ArrayList<>();
+        long hits;
+        try (InputStream is = new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))) {
+            hits = SruStreamParser.parsePassthrough(is, records::add);
+        }
+        assertEquals(3, hits);
+        assertEquals(4, records.size());
+        assertEquals("1234", records.get(0).getControlNumber());
+        Element record = parse(records.get(0).getData());
+        assertEquals("urn:m", record.getNamespaceURI());
+        assertEquals("a & b", record.getLastChild().getTextContent());
+        assertNull(records.get(1).getControlNumber());
+        assertNull(parse(records.get(1).getData()).getNamespaceURI());
+        assertNull(records.get(2).getData());
+        assertNull(records.get(3).getData());
+    }
+
+    @Test(expected = XMLStreamException.class)
+    public void testParseGarbled() throws Exception {
+        String xml = "<searchRetrieveResponse xmlns='" + SruStreamParser.SRU_NS + "'><numberOfRecords>1</numberOfRecords><records>";
+        try (InputStream is = new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))) {
+            SruStreamParser.parse(is, r -> {
+            });
+        }
+    }
+
+    private static Element parse(byte[] bytes) throws Exception {
+        try (InputStream is = new ByteArrayInputStream(bytes)) {
+            return XmlTools.newDocumentBuilder().parse(is).getDocumentElement();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017 DBC A/S (http://dbc.dk/)
+ *
+ * This is part of dbc-ess-service
+ *
+ * dbc-ess-service is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-ess-service is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.ess.service;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class TimeoutsTest {
+
+    @Test(timeout = 5000L)
+    public void testWithin() throws Exception {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> result = Timeouts.within(future, 1000L, "Test", s -> fail("Not abandoned"));
+        future.complete("value");
+        assertEquals("value", result.join());
+    }
+
+    @Test(timeout = 5000L)
+    public void testTimeoutCancelsSource() throws Exception {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> result = Timeouts.within(future, 10L, "Test", s -> {
+        });
+        try {
+            result.join();
+            fail("Expected timeout");
+        } catch (CompletionException ex) {
+            assertTrue(ex.getCause() instanceof TimeoutException);
+        }
+        // Cancelled by the timer, right after the timeout is reported
+        while (!future.isCancelled()) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void testCancelCancelsSource() throws Exception {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        Timeouts.within(future, 1000L, "Test", s -> {
+        }).cancel(true);
+        assertTrue(future.isCancelled());
+    }
+
+    @Test(timeout = 5000L)
+    public void testLateValueIsAbandoned() throws Exception {
+        CompletableFuture<FormattedRecord> record = new CompletableFuture<>();
+        // A source that cannot be cancelled, as a dependent future
+        CompletableFuture<Page> source = new CompletableFuture<>();
+        CompletableFuture<Page> future = source.thenApply(p -> p);
+        CompletableFuture<Page> result = Timeouts.within(future, 1000L, "Test", Page::cancel);
+        result.completeExceptionally(new TimeoutException());
+        source.complete(new Page(1, Arrays.asList(record)));
+        assertTrue(record.isCancelled());
+    }
+}